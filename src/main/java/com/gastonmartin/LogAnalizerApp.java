@@ -1,11 +1,20 @@
 package com.gastonmartin;
 
 
+import com.gastonmartin.model.FetchMode;
 import com.gastonmartin.service.LogProcessorService;
+import com.gastonmartin.util.Utils;
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class LogAnalizerApp
 
@@ -43,12 +52,86 @@ public class LogAnalizerApp
             searchTerms = String.format("%s AND %s",searchTerms, range);
         }
 
-        LogProcessorService lps = new LogProcessorService();
-        if (cli.hasOption("z")) {
-            int maxResults = Integer.valueOf(cli.getOptionValue("z"));
-            if (maxResults > 0 ) lps.setMaxResults(maxResults);
+        try (LogProcessorService lps = new LogProcessorService()) {
+            if (cli.hasOption("z")) {
+                int maxResults = Integer.valueOf(cli.getOptionValue("z"));
+                if (maxResults > 0 ) lps.setMaxResults(maxResults);
+            }
+            if (cli.hasOption("m")) {
+                lps.setFetchMode(FetchMode.valueOf(cli.getOptionValue("m").trim().toUpperCase()));
+            }
+            if (cli.hasOption("n")) {
+                int slices = Integer.valueOf(cli.getOptionValue("n"));
+                if (slices > 0) lps.setSlices(slices);
+            }
+            if (cli.hasOption("threads")) {
+                // Menos threads que procesadores deja cores libres para otros procesos
+                int threads = Integer.valueOf(cli.getOptionValue("threads"));
+                if (threads > 0) lps.setTransformWorkers(threads);
+            }
+            if (cli.hasOption("print-messages")) {
+                lps.setPrintMessages(true);
+            }
+            if (cli.hasOption("a")) {
+                lps.setAggregations(true);
+            }
+            if (cli.hasOption("u")) {
+                lps.setSample(true);
+            }
+            if (cli.hasOption("r")) {
+                lps.setRefreshCache(true);
+            }
+            if (cli.hasOption("c")) {
+                lps.setIncremental(true);
+                lps.setResetCheckpoint(cli.hasOption("reset"));
+            }
+            if (cli.hasOption("clear-cache") && lps.getPageCache() != null) {
+                lps.getPageCache().clear();
+            }
+            if (cli.hasOption("l")) {
+                // Offline: analiza archivos locales en vez de consultar a elastic
+                lps.processFiles(localFiles(cli.getOptionValue("l")));
+            } else if (cli.hasOption("p")) {
+                // Varias aplicaciones: un dia (por defecto hoy) o un rango first..last
+                List<String> apps = Arrays.stream(cli.getOptionValue("p").split(","))
+                        .map(String::trim)
+                        .filter(app -> !app.isEmpty())
+                        .collect(Collectors.toList());
+                String[] range = cli.getOptionValue("d", Utils.getTodayIndexName()).split("\\.\\.", 2);
+                lps.processApps(apps, range[0].trim(), range[range.length - 1].trim(), searchTerms);
+            } else if (cli.hasOption("d") && cli.getOptionValue("d").contains("..")) {
+                // Rango de dias: first..last
+                String[] range = cli.getOptionValue("d").split("\\.\\.", 2);
+                lps.processRange(range[0].trim(), range[1].trim(), searchTerms);
+            } else {
+                lps.process(cli.getOptionValue("d"), searchTerms); // Without date uses default (today's index)
+            }
+        }
+
+    }
+
+    /**
+     * Expands a comma separated list of files and directories (all the regular files inside, sorted by name)
+     * @param paths files and/or directories
+     * @return the files
+     */
+    private static List<Path> localFiles(String paths) {
+        List<Path> files = new ArrayList<>();
+        for (String name : paths.split(",")) {
+            Path path = Paths.get(name.trim());
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    children.filter(Files::isRegularFile).sorted().forEach(files::add);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else if (Files.isRegularFile(path)) {
+                files.add(path);
+            } else {
+                throw new RuntimeException("No such file: " + path);
+            }
         }
-        lps.process(null, searchTerms); // Use default (today's index)
+        return files;
 
     }
 
@@ -80,6 +163,96 @@ public class LogAnalizerApp
                 .build();
 
 
+        Option fetchMode = Option.builder("m")
+                .required(false)
+                .desc("fetch mode: pit, scroll or offset (default from config.properties)")
+                .longOpt("fetch-mode")
+                .numberOfArgs(1)
+                .type(String.class)
+                .build();
+
+        Option slices = Option.builder("n")
+                .required(false)
+                .desc("number of slices read in parallel with pit or scroll (default from config.properties)")
+                .longOpt("slices")
+                .numberOfArgs(1)
+                .type(Integer.class)
+                .build();
+
+        Option threads = Option.builder()
+                .required(false)
+                .desc("number of threads transforming the logs (default from config.properties, one per processor)")
+                .longOpt("threads")
+                .numberOfArgs(1)
+                .type(Integer.class)
+                .build();
+
+        Option printMessages = Option.builder()
+                .required(false)
+                .desc("print every log message after the replacements (slow)")
+                .longOpt("print-messages")
+                .build();
+
+        Option aggregations = Option.builder("a")
+                .required(false)
+                .desc("rank sources and scopes with elasticsearch aggregations over all the logs, not just the sample")
+                .longOpt("aggregations")
+                .build();
+
+        Option uniformSample = Option.builder("u")
+                .required(false)
+                .desc("read a uniform random sample of about <size> logs of the whole index and extrapolate the rankings to all of them")
+                .longOpt("sample")
+                .build();
+
+        Option local = Option.builder("l")
+                .required(false)
+                .desc("analyze local files (comma-separated files or directories) instead of elasticsearch: NDJSON exports or plain log files")
+                .longOpt("local")
+                .numberOfArgs(1)
+                .type(String.class)
+                .build();
+
+        Option apps = Option.builder("p")
+                .required(false)
+                .desc("analyze several applications (comma-separated, instead of APP_NAME) concurrently, each one in its own directory, and rank them")
+                .longOpt("apps")
+                .numberOfArgs(1)
+                .type(String.class)
+                .build();
+
+        Option date = Option.builder("d")
+                .required(false)
+                .desc("index date (i.e 2020.05.19), default today, or range of dates analyzed concurrently (i.e 2020.05.13..2020.05.19). Past days are kept in the local page cache")
+                .longOpt("date")
+                .numberOfArgs(1)
+                .type(String.class)
+                .build();
+
+        Option refresh = Option.builder("r")
+                .required(false)
+                .desc("download again even if the query is in the local page cache")
+                .longOpt("refresh")
+                .build();
+
+        Option clearCache = Option.builder()
+                .required(false)
+                .desc("remove all the entries of the local page cache")
+                .longOpt("clear-cache")
+                .build();
+
+        Option incremental = Option.builder("c")
+                .required(false)
+                .desc("incremental: only analyze the logs after the checkpoint of the previous run and merge them in (resumes interrupted runs)")
+                .longOpt("incremental")
+                .build();
+
+        Option reset = Option.builder()
+                .required(false)
+                .desc("with --incremental, discard the checkpoint and start from zero")
+                .longOpt("reset")
+                .build();
+
         Option version = Option.builder("v")
                 .required(false)
                 .desc("specific version")
@@ -119,6 +292,19 @@ public class LogAnalizerApp
         options.addOption(from);
         options.addOption(to);
         options.addOption(sampleSize);
+        options.addOption(fetchMode);
+        options.addOption(slices);
+        options.addOption(threads);
+        options.addOption(printMessages);
+        options.addOption(aggregations);
+        options.addOption(uniformSample);
+        options.addOption(local);
+        options.addOption(apps);
+        options.addOption(date);
+        options.addOption(refresh);
+        options.addOption(clearCache);
+        options.addOption(incremental);
+        options.addOption(reset);
         options.addOption(help);
 
         try
@@ -127,7 +313,7 @@ public class LogAnalizerApp
 
             if (commandLine.hasOption("h")){
                 String header = "\n";
-                String footer = "\nConnects to elasticsearch and samples logs and build a ranking of log usage";
+                String footer = "\nConnects to elasticsearch (or reads local files) and samples logs and build a ranking of log usage";
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("LogAnalizer", header, options, footer, true);
                 System.exit(0);
@@ -0,0 +1,87 @@
+package com.gastonmartin.model;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Exact running count of lines and sum of bytes grouped by some key (message, tags.source, tags.scope...)
+ * Memory depends on the number of distinct keys, not on the number of lines added.
+ */
+public class ExactRanking implements Ranking {
+
+    private static final int COUNT = 0;
+    private static final int BYTES = 1;
+
+    private final Map<String, long[]> entries = new HashMap<>();
+
+    @Override
+    public void add(String key, long bytes) {
+        long[] entry = entries.computeIfAbsent(key, k -> new long[2]);
+        entry[COUNT]++;
+        entry[BYTES] += bytes;
+    }
+
+    @Override
+    public void add(String key, long count, long bytes) {
+        long[] entry = entries.computeIfAbsent(key, k -> new long[2]);
+        entry[COUNT] += count;
+        entry[BYTES] += bytes;
+    }
+
+    @Override
+    public void merge(Ranking other) {
+        if (other instanceof ExactRanking) {
+            ((ExactRanking) other).entries.forEach((key, value) -> {
+                long[] entry = entries.computeIfAbsent(key, k -> new long[2]);
+                entry[COUNT] += value[COUNT];
+                entry[BYTES] += value[BYTES];
+            });
+        } else {
+            other.forEach(this::add);
+        }
+    }
+
+    @Override
+    public Map<String, Long> sortedByCount() {
+        return sorted(COUNT);
+    }
+
+    @Override
+    public Map<String, Long> sortedByBytes() {
+        return sorted(BYTES);
+    }
+
+    @Override
+    public long count(String key) {
+        long[] entry = entries.get(key);
+        return entry == null ? 0L : entry[COUNT];
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        entries.forEach((key, value) -> action.accept(key, value[COUNT], value[BYTES]));
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    private Map<String, Long> sorted(int field) {
+        return entries.entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[field]).reversed())
+                .collect(toMap(
+                        Map.Entry::getKey,
+                        e -> e.getValue()[field],
+                        (v1, v2) -> {
+                            throw new IllegalStateException();
+                        },
+                        LinkedHashMap::new
+                ));
+    }
+}
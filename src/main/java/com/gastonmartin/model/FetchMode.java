@@ -0,0 +1,14 @@
+package com.gastonmartin.model;
+
+/**
+ * How pages of results are requested to elasticsearch (see FETCH_MODE in config.properties)
+ * PIT and SCROLL can be split in slices (see SLICES) that are read concurrently.
+ */
+public enum FetchMode {
+    /* Point in time + search_after on a stable sort (elasticsearch 7.12+). Falls back to SCROLL if unavailable */
+    PIT,
+    /* Scroll context, for clusters without point in time */
+    SCROLL,
+    /* Legacy from/size URI search. Cost grows with depth and stops at index.max_result_window. Can not be sliced */
+    OFFSET
+}
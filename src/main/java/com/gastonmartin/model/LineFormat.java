@@ -0,0 +1,13 @@
+package com.gastonmartin.model;
+
+/**
+ * Format of the local files analyzed offline (see LOCAL_FORMAT in config.properties)
+ */
+public enum LineFormat {
+    /* NDJSON for .json, .jsonl and .ndjson files, RAW for anything else */
+    AUTO,
+    /* One Json document per line: a _source ({"message": ..., "tags": {...}}) or a whole hit ({"_id": ..., "_source": {...}}) */
+    NDJSON,
+    /* Plain log lines, split into message and tags by LOCAL_LINE_PATTERN */
+    RAW
+}
@@ -0,0 +1,27 @@
+package com.gastonmartin.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * The parts of an elasticsearch hit the analysis uses: _id, _source.message, _source.tags.* and
+ * the sort values (needed to continue a search after this hit)
+ */
+@AllArgsConstructor
+@Getter
+public class LogHit {
+    private final String id;
+    private final String message;
+    private final Map<String, String> tags;
+    private final Object[] sort;
+
+    /**
+     * @param tag name of the tag
+     * @return value of the tag or null if the hit has no such tag
+     */
+    public String getTag(String tag) {
+        return tags.get(tag);
+    }
+}
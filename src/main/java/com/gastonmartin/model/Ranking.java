@@ -0,0 +1,120 @@
+package com.gastonmartin.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Running count of lines and sum of bytes grouped by some key (message, tags.source, tags.scope...)
+ * Either exact ({@link ExactRanking}) or approximate in fixed memory ({@link SketchRanking}), see RankingMode.
+ * Not thread safe.
+ */
+public interface Ranking {
+
+    /**
+     * Receives the entries of a ranking, see {@link #forEach(EntryConsumer)}
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(String key, long count, long bytes);
+    }
+
+    /**
+     * Accounts one more line for the given key
+     * @param key the grouping key
+     * @param bytes size of the original line
+     */
+    void add(String key, long bytes);
+
+    /**
+     * Accounts one more line for a key already hashed, so rankings keyed by fingerprint do not hash it again
+     * @param key the grouping key
+     * @param fingerprint the {@link com.gastonmartin.util.Utils#hash64(String)} of the key
+     * @param bytes size of the original line
+     */
+    default void addFingerprinted(String key, long fingerprint, long bytes) {
+        add(key, bytes);
+    }
+
+    /**
+     * Accounts several lines at once for the given key (i.e. when restoring a saved ranking)
+     * @param key the grouping key
+     * @param count number of lines
+     * @param bytes size of the original lines
+     */
+    void add(String key, long count, long bytes);
+
+    /**
+     * Adds all the entries of another ranking into this one
+     * @param other another Ranking
+     */
+    void merge(Ranking other);
+
+    /**
+     * @return a {@code Map<String, Long>} of line count by key, sorted by count (descending)
+     */
+    Map<String, Long> sortedByCount();
+
+    /**
+     * @return a {@code Map<String, Long>} of bytes by key, sorted by bytes (descending)
+     */
+    Map<String, Long> sortedByBytes();
+
+    /**
+     * @param n max number of keys
+     * @return the first n entries of {@link #sortedByCount()}
+     */
+    default Map<String, Long> topByCount(int n) {
+        return first(sortedByCount(), n);
+    }
+
+    /**
+     * @param n max number of keys
+     * @return the first n entries of {@link #sortedByBytes()}
+     */
+    default Map<String, Long> topByBytes(int n) {
+        return first(sortedByBytes(), n);
+    }
+
+    static Map<String, Long> first(Map<String, Long> sorted, int n) {
+        Map<String, Long> first = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+            if (first.size() >= n) break;
+            first.put(entry.getKey(), entry.getValue());
+        }
+        return first;
+    }
+
+    /**
+     * Looks up a single key, without sorting the ranking
+     * @param key a key
+     * @return its line count, 0 if it was never added (an upper bound when approximate, see {@link #countError(String)})
+     */
+    long count(String key);
+
+    /**
+     * @param key a key of {@link #sortedByCount()} or of {@link #count(String)}
+     * @return how much its count may be over the real one (0 when exact)
+     */
+    default long countError(String key) {
+        return 0L;
+    }
+
+    /**
+     * @param key a key of {@link #sortedByBytes()}
+     * @return how much its bytes may be over the real ones (0 when exact)
+     */
+    default long bytesError(String key) {
+        return 0L;
+    }
+
+    /**
+     * Visits all the entries, in no particular order
+     * @param action receives the key, count and bytes of each entry
+     */
+    void forEach(EntryConsumer action);
+
+    /**
+     * @return number of distinct keys kept
+     */
+    int size();
+}
@@ -0,0 +1,28 @@
+package com.gastonmartin.model;
+
+/**
+ * How a ranking is kept (see RANKING_MESSAGE, RANKING_SOURCE and RANKING_SCOPE in config.properties)
+ */
+public enum RankingMode {
+    /* Every distinct key with its exact count and bytes, memory grows with the number of keys */
+    EXACT,
+    /* Top SKETCH_TOP_K keys with estimated count and bytes and their error bounds, in fixed memory */
+    SKETCH;
+
+    /**
+     * @param topK number of keys kept by a SKETCH ranking
+     * @return a new empty ranking of this mode
+     */
+    public Ranking newRanking(int topK) {
+        return this == SKETCH ? new SketchRanking(topK) : new ExactRanking();
+    }
+
+    /**
+     * @param topK number of keys kept by a SKETCH ranking
+     * @param templates dictionary of the messages, EXACT rankings are keyed by their fingerprints
+     * @return a new empty ranking of messages of this mode
+     */
+    public Ranking newRanking(int topK, TemplateDictionary templates) {
+        return this == SKETCH ? new SketchRanking(topK) : new TemplateRanking(templates);
+    }
+}
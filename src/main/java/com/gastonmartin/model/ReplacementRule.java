@@ -0,0 +1,17 @@
+package com.gastonmartin.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.regex.Pattern;
+
+/**
+ * A single line of expressions.txt already compiled: the regex and the replacement string
+ * (which may refer to capture groups as $1, $2, ... $n)
+ */
+@AllArgsConstructor
+@Getter
+public class ReplacementRule {
+    private final Pattern pattern;
+    private final String replacement;
+}
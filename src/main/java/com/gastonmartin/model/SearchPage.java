@@ -0,0 +1,19 @@
+package com.gastonmartin.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * One page of results of an elasticsearch search
+ */
+@AllArgsConstructor
+@Getter
+public class SearchPage {
+    /* hits.total of the response (total matching documents, not the size of this page) */
+    private final long total;
+    private final List<LogHit> hits;
+    /* pit_id or _scroll_id of the response (null for plain searches) */
+    private final String cursorId;
+}
@@ -0,0 +1,66 @@
+package com.gastonmartin.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * What to search in elasticsearch and how to page through the results
+ */
+@Builder(toBuilder = true)
+@Getter
+public class SearchQuery {
+    /* Name of the index, i.e. some_app-2020.05.30 */
+    private final String index;
+    /* Lucene query string, i.e. "tags.source:SomeClass" (usually "*") */
+    private final String terms;
+    private final int pageSize;
+    /* Field used for a stable sort when paging with search_after, i.e. "timestamp" */
+    private final String sortField;
+    /* How long elasticsearch keeps a point in time or scroll alive between pages, i.e. "2m" */
+    private final String keepAlive;
+    /* Slice read by this query (0 based) when the search is split in sliceMax slices, see FetchMode */
+    private final int sliceId;
+    /* Number of slices the search is split in, 0 or 1 means not sliced */
+    private final int sliceMax;
+    /* Only hits whose sortField (epoch millis) is between rangeFrom and rangeTo (both inclusive, null means unbounded) */
+    private final Long rangeFrom;
+    private final Long rangeTo;
+    /* Whether hits must come in sortField order (i.e. to checkpoint them), otherwise scroll uses the cheaper _doc order */
+    private final boolean ordered;
+    /* Fields of _source the analysis reads (i.e. "message", "tags.source"), null for the whole _source */
+    private final List<String> sourceFields;
+    /* Probability of each hit to be returned, for a uniform random sample (0 or 1 means all of them) */
+    private final double sampleRate;
+    /* Seed of the random sample, the same seed returns the same sample */
+    private final int sampleSeed;
+
+    /**
+     * @return whether this query reads only one slice of the results
+     */
+    public boolean isSliced() {
+        return sliceMax > 1;
+    }
+
+    /**
+     * @return whether only some fields of _source (and of the response) are requested
+     */
+    public boolean isProjected() {
+        return sourceFields != null;
+    }
+
+    /**
+     * @return whether this query returns only a random sample of the hits
+     */
+    public boolean isSampled() {
+        return sampleRate > 0.0 && sampleRate < 1.0;
+    }
+
+    /**
+     * @return whether this query is restricted to a range of sortField
+     */
+    public boolean isRanged() {
+        return rangeFrom != null || rangeTo != null;
+    }
+}
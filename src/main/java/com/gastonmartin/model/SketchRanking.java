@@ -0,0 +1,190 @@
+package com.gastonmartin.model;
+
+import com.gastonmartin.util.CountMinSketch;
+import com.gastonmartin.util.SpaceSaving;
+import lombok.Getter;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Approximate ranking in fixed memory, for when the number of distinct keys explodes (i.e. a variable part of
+ * the messages that no expression generalizes). Keeps the top K keys by count and the top K by bytes with
+ * Space-Saving, and a Count-Min sketch of each to tighten their estimates: the reported value of a key is the
+ * smallest of both upper bounds, and its error how far it may be from the Space-Saving lower bound.
+ * Any key with more than 1/K of the lines (or bytes) is guaranteed to be in the ranking.
+ */
+public class SketchRanking implements Ranking {
+
+    /* Count-Min estimates are at most e/4096 (0.07%) of the total over, with probability 1 - e^-5 (99.3%) */
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int SKETCH_DEPTH = 5;
+
+    /* The summaries and sketches are exposed to save them as they are, see CheckpointStore */
+    @Getter
+    private final int topK;
+    @Getter
+    private final SpaceSaving topByCount;
+    @Getter
+    private final SpaceSaving topByBytes;
+
+    /* Created on the first add, many rankings of pages or workers stay empty or small */
+    @Getter
+    private CountMinSketch counts;
+    @Getter
+    private CountMinSketch bytes;
+
+    /**
+     * @param topK number of keys kept in each ranking (by count and by bytes)
+     */
+    public SketchRanking(int topK) {
+        this.topK = topK;
+        this.topByCount = new SpaceSaving(topK);
+        this.topByBytes = new SpaceSaving(topK);
+    }
+
+    /**
+     * Restores a saved ranking from its parts, keeping the error of each counter
+     * @param topByCount the summary of the counts
+     * @param topByBytes the summary of the bytes, with the same capacity
+     * @param counts the sketch of the counts, null if nothing was added
+     * @param bytes the sketch of the bytes, null if nothing was added
+     */
+    public SketchRanking(SpaceSaving topByCount, SpaceSaving topByBytes, CountMinSketch counts, CountMinSketch bytes) {
+        if (topByCount.capacity() != topByBytes.capacity() || (counts == null) != (bytes == null)) {
+            throw new IllegalArgumentException("Inconsistent parts of a sketch ranking");
+        }
+        this.topK = topByCount.capacity();
+        this.topByCount = topByCount;
+        this.topByBytes = topByBytes;
+        this.counts = counts;
+        this.bytes = bytes;
+    }
+
+    @Override
+    public void add(String key, long bytes) {
+        add(key, 1L, bytes);
+    }
+
+    @Override
+    public void add(String key, long count, long bytes) {
+        sketches();
+        topByCount.add(key, count);
+        topByBytes.add(key, bytes);
+        this.counts.add(key, count);
+        this.bytes.add(key, bytes);
+    }
+
+    @Override
+    public void merge(Ranking other) {
+        if (!(other instanceof SketchRanking) || ((SketchRanking) other).topK != topK) {
+            other.forEach(this::add);
+            return;
+        }
+        SketchRanking sketch = (SketchRanking) other;
+        if (sketch.counts == null) return;
+        sketches();
+        topByCount.merge(sketch.topByCount);
+        topByBytes.merge(sketch.topByBytes);
+        counts.merge(sketch.counts);
+        bytes.merge(sketch.bytes);
+    }
+
+    @Override
+    public Map<String, Long> sortedByCount() {
+        return sorted(topByCount, this::estimatedCount);
+    }
+
+    @Override
+    public Map<String, Long> sortedByBytes() {
+        return sorted(topByBytes, this::estimatedBytes);
+    }
+
+    @Override
+    public long count(String key) {
+        return estimatedCount(key);
+    }
+
+    @Override
+    public long countError(String key) {
+        return error(topByCount, counts, key);
+    }
+
+    @Override
+    public long bytesError(String key) {
+        return error(topByBytes, bytes, key);
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (String key : keys()) {
+            action.accept(key, estimatedCount(key), estimatedBytes(key));
+        }
+    }
+
+    @Override
+    public int size() {
+        return keys().size();
+    }
+
+    private long estimatedCount(String key) {
+        return estimate(topByCount, counts, key);
+    }
+
+    private long estimatedBytes(String key) {
+        return estimate(topByBytes, bytes, key);
+    }
+
+    /* La menor de las dos cotas superiores */
+    private static long estimate(SpaceSaving top, CountMinSketch sketch, String key) {
+        if (sketch == null) return 0L;
+        SpaceSaving.Counter counter = top.get(key);
+        long estimate = sketch.estimate(key);
+        return counter == null ? estimate : Math.min(counter.getValue(), estimate);
+    }
+
+    /* Distancia entre la estimacion y la cota inferior de Space-Saving (o la cota de Count-Min si no esta en el top) */
+    private static long error(SpaceSaving top, CountMinSketch sketch, String key) {
+        if (sketch == null) return 0L;
+        SpaceSaving.Counter counter = top.get(key);
+        if (counter == null) return sketch.errorBound();
+        return estimate(top, sketch, key) - (counter.getValue() - counter.getError());
+    }
+
+    private static Map<String, Long> sorted(SpaceSaving top, ToLongFunction<String> estimate) {
+        // Las estimaciones pueden quedar en otro orden que los valores de Space-Saving
+        return top.top().stream()
+                .collect(toMap(SpaceSaving.Counter::getKey, counter -> estimate.applyAsLong(counter.getKey())))
+                .entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Long> e) -> e.getValue()).reversed())
+                .collect(toMap(
+                        Map.Entry::getKey,
+                        Map.Entry::getValue,
+                        (v1, v2) -> {
+                            throw new IllegalStateException();
+                        },
+                        LinkedHashMap::new
+                ));
+    }
+
+    private Set<String> keys() {
+        Set<String> keys = new HashSet<>();
+        topByCount.top().forEach(counter -> keys.add(counter.getKey()));
+        topByBytes.top().forEach(counter -> keys.add(counter.getKey()));
+        return keys;
+    }
+
+    private void sketches() {
+        if (counts == null) {
+            counts = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+            bytes = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+        }
+    }
+}
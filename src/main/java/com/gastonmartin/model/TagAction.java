@@ -0,0 +1,11 @@
+package com.gastonmartin.model;
+
+/**
+ * What to do with a [name:value] segment of a message whose value is also present in tags.name
+ */
+public enum TagAction {
+    /* Replace the value with the tag name in uppercase, i.e [request_id:REQUEST_ID] (see Tags.DISMISS) */
+    DISMISS,
+    /* Keep the shape of the value: digits become 9's if numeric, otherwise word chars become x's (see Tags.UNDIFERENTIATE) */
+    GENERALIZE
+}
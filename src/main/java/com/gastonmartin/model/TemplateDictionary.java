@@ -0,0 +1,157 @@
+package com.gastonmartin.model;
+
+import com.gastonmartin.util.Utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assigns each distinct transformed message (template) a 64 bit fingerprint and keeps its text only once, so
+ * rankings key their entries by a long instead of by the whole message (see {@link TemplateRanking}).
+ * Fingerprints are checked against the text kept: on a collision the message takes the next free fingerprint.
+ * The texts are kept in open addressing tables keyed by the primitive fingerprint (like LongCountTable), split in
+ * stripes with a lock each: looking up a line boxes nothing and the transform workers rarely wait on each other.
+ * Thread safe, shared by all the aggregators of a run.
+ */
+public class TemplateDictionary {
+
+    /* Power of two, the stripe of a fingerprint is given by its highest bits */
+    private static final int STRIPES = 64;
+    private static final int STRIPE_SHIFT = 64 - Integer.numberOfTrailingZeros(STRIPES);
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder collisions = new LongAdder();
+
+    public TemplateDictionary() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * @param text a transformed message
+     * @return its fingerprint, always the same for the same text
+     */
+    public long id(String text) {
+        return id(text, Utils.hash64(text));
+    }
+
+    /**
+     * @param text a transformed message
+     * @param fingerprint its {@link Utils#hash64(String)}, already computed by the caller
+     * @return its fingerprint, always the same for the same text
+     */
+    public long id(String text, long fingerprint) {
+        long id = fingerprint;
+        while (true) {
+            Stripe stripe = stripe(id);
+            String known;
+            synchronized (stripe) {
+                known = stripe.putIfAbsent(id, text);
+            }
+            // String.equals compara primero la referencia: con TransformCache suele ser la misma instancia
+            if (known == null || known.equals(text)) return id;
+            collisions.increment();
+            id++;
+        }
+    }
+
+    /**
+     * @param text a transformed message
+     * @return its fingerprint, or null if it was never added (unlike {@link #id(String)} it is not added)
+     */
+    public Long find(String text) {
+        long id = Utils.hash64(text);
+        while (true) {
+            String known = text(id);
+            if (known == null) return null;
+            if (known.equals(text)) return id;
+            id++;
+        }
+    }
+
+    /**
+     * @param id a fingerprint returned by {@link #id(String)}
+     * @return the text of the message, null if there is none with that fingerprint
+     */
+    public String text(long id) {
+        Stripe stripe = stripe(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+
+    /**
+     * @return number of distinct messages
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of lookups that found another text with the same fingerprint
+     */
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    private Stripe stripe(long id) {
+        return stripes[(int) (id >>> STRIPE_SHIFT)];
+    }
+
+    /* Open addressing (linear probing) from fingerprint to text, a null text is a free slot. Callers lock it */
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private long[] ids = new long[INITIAL_CAPACITY];
+        private String[] texts = new String[INITIAL_CAPACITY];
+        private int mask = INITIAL_CAPACITY - 1;
+        private int size;
+
+        String get(long id) {
+            return texts[slot(id)];
+        }
+
+        /* El texto guardado con ese fingerprint, o null si no habia ninguno y se guardo este */
+        String putIfAbsent(long id, String text) {
+            int slot = slot(id);
+            if (texts[slot] != null) return texts[slot];
+            ids[slot] = id;
+            texts[slot] = text;
+            // Ocupacion por debajo de la mitad, como LongCountTable
+            if (++size > (mask + 1) >> 1) grow();
+            return null;
+        }
+
+        private int slot(long id) {
+            int slot = mix(id) & mask;
+            while (texts[slot] != null && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /* Los fingerprints de una colision son consecutivos, se dispersan en la tabla */
+        private static int mix(long id) {
+            long hash = id * 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        private void grow() {
+            long[] oldIds = ids;
+            String[] oldTexts = texts;
+            ids = new long[oldIds.length << 1];
+            texts = new String[oldTexts.length << 1];
+            mask = ids.length - 1;
+            for (int i = 0; i < oldTexts.length; i++) {
+                if (oldTexts[i] == null) continue;
+                int slot = slot(oldIds[i]);
+                ids[slot] = oldIds[i];
+                texts[slot] = oldTexts[i];
+            }
+        }
+    }
+}
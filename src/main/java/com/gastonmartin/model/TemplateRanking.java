@@ -0,0 +1,89 @@
+package com.gastonmartin.model;
+
+import com.gastonmartin.util.LongCountTable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exact ranking of transformed messages keyed by their fingerprint in a {@link TemplateDictionary} (the text is
+ * kept once in the dictionary), so merging the rankings of pages and workers never hashes nor compares messages.
+ * Counts and bytes live in a {@link LongCountTable}: no object per entry nor boxed values.
+ * Memory depends on the number of distinct messages, not on the number of lines added.
+ */
+public class TemplateRanking implements Ranking {
+
+    private final TemplateDictionary templates;
+    private final LongCountTable entries = new LongCountTable();
+
+    /**
+     * @param templates the dictionary of the messages, shared by the rankings that are merged together
+     */
+    public TemplateRanking(TemplateDictionary templates) {
+        this.templates = templates;
+    }
+
+    @Override
+    public void add(String key, long bytes) {
+        entries.add(templates.id(key), 1L, bytes);
+    }
+
+    @Override
+    public void addFingerprinted(String key, long fingerprint, long bytes) {
+        entries.add(templates.id(key, fingerprint), 1L, bytes);
+    }
+
+    @Override
+    public void add(String key, long count, long bytes) {
+        entries.add(templates.id(key), count, bytes);
+    }
+
+    @Override
+    public void merge(Ranking other) {
+        if (other instanceof TemplateRanking && ((TemplateRanking) other).templates == templates) {
+            entries.merge(((TemplateRanking) other).entries);
+        } else {
+            other.forEach(this::add);
+        }
+    }
+
+    @Override
+    public Map<String, Long> sortedByCount() {
+        return topByCount(entries.size());
+    }
+
+    @Override
+    public Map<String, Long> sortedByBytes() {
+        return topByBytes(entries.size());
+    }
+
+    @Override
+    public Map<String, Long> topByCount(int n) {
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (long id : entries.topByCount(n)) top.put(templates.text(id), entries.count(id));
+        return top;
+    }
+
+    @Override
+    public Map<String, Long> topByBytes(int n) {
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (long id : entries.topByBytes(n)) top.put(templates.text(id), entries.bytes(id));
+        return top;
+    }
+
+    @Override
+    public long count(String key) {
+        Long id = templates.find(key);
+        return id == null ? 0L : entries.count(id);
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        entries.forEach((id, count, bytes) -> action.accept(templates.text(id), count, bytes));
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,419 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.model.Ranking;
+import com.gastonmartin.model.SketchRanking;
+import com.gastonmartin.util.CountMinSketch;
+import com.gastonmartin.util.HyperLogLog;
+import com.gastonmartin.util.SpaceSaving;
+import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persists the progress of incremental runs: for each query (application, index, search terms) the aggregate
+ * of all the hits analyzed so far and the position of the last one, so the next run only downloads newer hits
+ * and merges them in, and a run that was interrupted resumes from its last saved page.
+ * The position is the sort field value (epoch millis) of the last hit plus the ids of the hits with that
+ * same value: the next run searches from that value (inclusive) and skips those ids.
+ * Each checkpoint is a {key}.checkpoint.json.gz file, replaced atomically when saved.
+ * A checkpoint also records the settings its aggregate was produced with (the expressions and how the rankings are
+ * kept): merging hits transformed or ranked another way would mix both in the same ranking, so such a checkpoint
+ * is not loaded and the analysis starts from zero.
+ */
+public class CheckpointStore {
+
+    private static final String SUFFIX = ".checkpoint.json.gz";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final Path dir;
+
+    /**
+     * The aggregate of the hits analyzed so far and the position of the last one
+     */
+    @Getter
+    public static class Checkpoint {
+        private final LogAggregator aggregate;
+        /* The expressions and ranking settings the aggregate is produced with */
+        private final String settings;
+        /* Sort field value (epoch millis) of the last hit analyzed, null if none yet */
+        private Long lastSortValue;
+        /* Ids of the hits analyzed whose sort field value is lastSortValue */
+        private final Set<String> boundaryIds = new HashSet<>();
+        private long pages;
+        private long hits;
+
+        /**
+         * @param aggregate the aggregate to accumulate into (empty for a new checkpoint)
+         * @param settings the expressions and ranking settings the aggregate is produced with, i.e. their digests
+         */
+        public Checkpoint(LogAggregator aggregate, String settings) {
+            this.aggregate = aggregate;
+            this.settings = settings;
+        }
+
+        /**
+         * Accounts a page already aggregated. Pages must come in sort order.
+         * @param page the hits of the page, in sort order
+         * @param pageAggregate the aggregate of just those hits
+         * @throws IOException if a hit has no sort value (the position can not be kept)
+         */
+        public void add(List<LogHit> page, LogAggregator pageAggregate) throws IOException {
+            aggregate.merge(pageAggregate);
+            for (LogHit hit : page) {
+                long value = sortValue(hit);
+                if (lastSortValue == null || value != lastSortValue) {
+                    lastSortValue = value;
+                    boundaryIds.clear();
+                }
+                boundaryIds.add(hit.getId());
+            }
+            pages++;
+            hits += page.size();
+        }
+    }
+
+    /**
+     * @param dir directory of the checkpoints, created if missing
+     */
+    public CheckpointStore(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the checkpoint of a query
+     * @param app name of the application
+     * @param index name of the index date, i.e. "2020.05.30"
+     * @param query the search terms
+     * @param aggregate empty aggregator the saved aggregate is restored into
+     * @param settings the current expressions and ranking settings, see {@link Checkpoint#getSettings()}
+     * @return the checkpoint or null if there is none, or if it was produced with other settings
+     * @throws IOException if the checkpoint exists but can not be read
+     */
+    public Checkpoint load(String app, String index, String query, LogAggregator aggregate, String settings) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(aggregate, settings);
+        boolean sameSettings = false;
+        long lines = 0L;
+        long bytesBefore = 0L;
+        long bytesAfter = 0L;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file(app, index, query)), 1 << 16);
+             JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected checkpoint, expected a Json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "settings":
+                        // Se guarda antes que el agregado: si no coincide no se lee el resto
+                        if (!settings.equals(parser.getText())) {
+                            System.err.println(String.format("WARN: the checkpoint of %s-%s \"%s\" was produced with other settings (%s), "
+                                    + "now %s: starting from zero", app, index, query, parser.getText(), settings));
+                            return null;
+                        }
+                        sameSettings = true;
+                        break;
+                    case "lastSortValue":
+                        checkpoint.lastSortValue = token == JsonToken.VALUE_NULL ? null : parser.getLongValue();
+                        break;
+                    case "boundaryIds":
+                        while (parser.nextToken() == JsonToken.VALUE_STRING) checkpoint.boundaryIds.add(parser.getText());
+                        break;
+                    case "pages":
+                        checkpoint.pages = parser.getLongValue();
+                        break;
+                    case "hits":
+                        checkpoint.hits = parser.getLongValue();
+                        break;
+                    case "lineCount":
+                        lines = parser.getLongValue();
+                        break;
+                    case "totalBytesBeforeReplaces":
+                        bytesBefore = parser.getLongValue();
+                        break;
+                    case "totalBytesAfterReplaces":
+                        bytesAfter = parser.getLongValue();
+                        break;
+                    case "byMessage":
+                        readRanking(parser, aggregate.getByMessage());
+                        break;
+                    case "bySource":
+                        readRanking(parser, aggregate.getBySource());
+                        break;
+                    case "byScope":
+                        readRanking(parser, aggregate.getByScope());
+                        break;
+                    case "cardinalityPrecision":
+                        int savedPrecision = parser.getIntValue();
+                        if (savedPrecision != aggregate.getCardinalityPrecision() && aggregate.getCardinalityPrecision() > 0) {
+                            System.err.println(String.format("WARN: the distinct counters of the checkpoint of %s-%s \"%s\" have precision %d, "
+                                    + "now %d: they only count from now on, use --reset to count everything again",
+                                    app, index, query, savedPrecision, aggregate.getCardinalityPrecision()));
+                        }
+                        break;
+                    case "messagesBySource":
+                        readDistinct(parser, aggregate.getMessagesBySource(), aggregate.getCardinalityPrecision());
+                        break;
+                    case "valuesByTag":
+                        readDistinct(parser, aggregate.getValuesByTag(), aggregate.getCardinalityPrecision());
+                        break;
+                    case "sampledTags":
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String tag = parser.getCurrentName();
+                            parser.nextToken();
+                            aggregate.getSampledTags().put(tag, parser.getText());
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!sameSettings) {
+            System.err.println(String.format("WARN: the checkpoint of %s-%s \"%s\" does not record its settings: starting from zero", app, index, query));
+            return null;
+        }
+        aggregate.addTotals(lines, bytesBefore, bytesAfter);
+        return checkpoint;
+    }
+
+    /**
+     * Saves the checkpoint of a query, replacing the previous one
+     * @param app name of the application
+     * @param index name of the index date, i.e. "2020.05.30"
+     * @param query the search terms
+     * @param checkpoint the checkpoint
+     * @throws IOException if the checkpoint can not be written (the previous one is kept)
+     */
+    public void save(String app, String index, String query, Checkpoint checkpoint) throws IOException {
+        Path file = file(app, index, query);
+        Path part = file.resolveSibling(file.getFileName() + PART_SUFFIX);
+        LogAggregator aggregate = checkpoint.aggregate;
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(part), 1 << 16);
+             JsonGenerator json = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("app", app);
+            json.writeStringField("index", index);
+            json.writeStringField("query", query);
+            json.writeStringField("settings", checkpoint.settings);
+            if (checkpoint.lastSortValue == null) json.writeNullField("lastSortValue");
+            else json.writeNumberField("lastSortValue", checkpoint.lastSortValue);
+            json.writeArrayFieldStart("boundaryIds");
+            for (String id : checkpoint.boundaryIds) json.writeString(id);
+            json.writeEndArray();
+            json.writeNumberField("pages", checkpoint.pages);
+            json.writeNumberField("hits", checkpoint.hits);
+            json.writeNumberField("lineCount", aggregate.getLineCount());
+            json.writeNumberField("totalBytesBeforeReplaces", aggregate.getTotalBytesBeforeReplaces());
+            json.writeNumberField("totalBytesAfterReplaces", aggregate.getTotalBytesAfterReplaces());
+            writeRanking(json, "byMessage", aggregate.getByMessage());
+            writeRanking(json, "bySource", aggregate.getBySource());
+            writeRanking(json, "byScope", aggregate.getByScope());
+            json.writeObjectFieldStart("sampledTags");
+            for (Map.Entry<String, String> tag : aggregate.getSampledTags().entrySet()) {
+                json.writeStringField(tag.getKey(), tag.getValue());
+            }
+            json.writeEndObject();
+            json.writeNumberField("cardinalityPrecision", aggregate.getCardinalityPrecision());
+            writeDistinct(json, "messagesBySource", aggregate.getMessagesBySource());
+            writeDistinct(json, "valuesByTag", aggregate.getValuesByTag());
+            json.writeEndObject();
+        }
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the checkpoint of a query, so the next run starts from zero
+     */
+    public void delete(String app, String index, String query) {
+        try {
+            Files.deleteIfExists(file(app, index, query));
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param hit a hit of a search sorted by the sort field
+     * @return the sort field value of the hit (epoch millis)
+     * @throws IOException if the hit has no numeric sort value
+     */
+    static long sortValue(LogHit hit) throws IOException {
+        Object[] sort = hit.getSort();
+        if (sort == null || sort.length == 0 || !(sort[0] instanceof Number)) {
+            throw new IOException("Hit " + hit.getId() + " has no numeric sort value, can not checkpoint it");
+        }
+        return ((Number) sort[0]).longValue();
+    }
+
+    /* Entries as [key, count, bytes], a SketchRanking as its counters and sketches (estimates would lose their error) */
+    private static void writeRanking(JsonGenerator json, String name, Ranking ranking) throws IOException {
+        if (ranking instanceof SketchRanking) {
+            writeSketch(json, name, (SketchRanking) ranking);
+            return;
+        }
+        json.writeArrayFieldStart(name);
+        IOException[] failure = new IOException[1];
+        ranking.forEach((key, count, bytes) -> {
+            if (failure[0] != null) return;
+            try {
+                json.writeStartArray();
+                json.writeString(key);
+                json.writeNumber(count);
+                json.writeNumber(bytes);
+                json.writeEndArray();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        json.writeEndArray();
+    }
+
+    private static void readRanking(JsonParser parser, Ranking ranking) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            ranking.merge(readSketch(parser));
+            return;
+        }
+        while (parser.nextToken() == JsonToken.START_ARRAY) {
+            parser.nextToken();
+            String key = parser.getText();
+            parser.nextToken();
+            long count = parser.getLongValue();
+            parser.nextToken();
+            long bytes = parser.getLongValue();
+            parser.nextToken();
+            ranking.add(key, count, bytes);
+        }
+    }
+
+    /* Counters as [key, value, error] and the Count-Min tables in base64 */
+    private static void writeSketch(JsonGenerator json, String name, SketchRanking sketch) throws IOException {
+        json.writeObjectFieldStart(name);
+        json.writeNumberField("topK", sketch.getTopK());
+        writeCounters(json, "topByCount", sketch.getTopByCount());
+        writeCounters(json, "topByBytes", sketch.getTopByBytes());
+        if (sketch.getCounts() != null) {
+            json.writeBinaryField("counts", sketch.getCounts().toBytes());
+            json.writeBinaryField("bytes", sketch.getBytes().toBytes());
+        }
+        json.writeEndObject();
+    }
+
+    private static void writeCounters(JsonGenerator json, String name, SpaceSaving summary) throws IOException {
+        json.writeArrayFieldStart(name);
+        for (SpaceSaving.Counter counter : summary.top()) {
+            json.writeStartArray();
+            json.writeString(counter.getKey());
+            json.writeNumber(counter.getValue());
+            json.writeNumber(counter.getError());
+            json.writeEndArray();
+        }
+        json.writeEndArray();
+    }
+
+    private static SketchRanking readSketch(JsonParser parser) throws IOException {
+        int topK = 0;
+        SpaceSaving topByCount = null;
+        SpaceSaving topByBytes = null;
+        CountMinSketch counts = null;
+        CountMinSketch bytes = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "topK":
+                    topK = parser.getIntValue();
+                    break;
+                case "topByCount":
+                    topByCount = readCounters(parser, topK);
+                    break;
+                case "topByBytes":
+                    topByBytes = readCounters(parser, topK);
+                    break;
+                case "counts":
+                    counts = CountMinSketch.fromBytes(parser.getBinaryValue());
+                    break;
+                case "bytes":
+                    bytes = CountMinSketch.fromBytes(parser.getBinaryValue());
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (topByCount == null || topByBytes == null) throw new IOException("Unexpected checkpoint, incomplete sketch ranking");
+        return new SketchRanking(topByCount, topByBytes, counts, bytes);
+    }
+
+    private static SpaceSaving readCounters(JsonParser parser, int topK) throws IOException {
+        if (topK <= 0) throw new IOException("Unexpected checkpoint, sketch ranking without topK");
+        SpaceSaving summary = new SpaceSaving(topK);
+        while (parser.nextToken() == JsonToken.START_ARRAY) {
+            parser.nextToken();
+            String key = parser.getText();
+            parser.nextToken();
+            long value = parser.getLongValue();
+            parser.nextToken();
+            long error = parser.getLongValue();
+            parser.nextToken();
+            summary.restore(key, value, error);
+        }
+        return summary;
+    }
+
+    /* Registers of each counter in base64 */
+    private static void writeDistinct(JsonGenerator json, String name, Map<String, HyperLogLog> counters) throws IOException {
+        json.writeObjectFieldStart(name);
+        for (Map.Entry<String, HyperLogLog> counter : counters.entrySet()) {
+            json.writeBinaryField(counter.getKey(), counter.getValue().toBytes());
+        }
+        json.writeEndObject();
+    }
+
+    /* Counters of another precision (CARDINALITY_PRECISION changed) can not be merged and are dropped */
+    private static void readDistinct(JsonParser parser, Map<String, HyperLogLog> counters, int precision) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            HyperLogLog counter = HyperLogLog.fromBytes(parser.getBinaryValue());
+            if (counter.getPrecision() != precision) continue;
+            HyperLogLog current = counters.get(key);
+            if (current == null) counters.put(key, counter);
+            else current.merge(counter);
+        }
+    }
+
+    private Path file(String app, String index, String query) {
+        return dir.resolve(DigestUtils.sha1Hex(app + '\n' + index + '\n' + query) + SUFFIX);
+    }
+}
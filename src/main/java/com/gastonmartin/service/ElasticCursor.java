@@ -0,0 +1,141 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.gastonmartin.model.SearchPage;
+import com.gastonmartin.model.SearchQuery;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+
+/**
+ * Common plumbing of the cursors: building request bodies and sending them through the shared client
+ */
+abstract class ElasticCursor implements SearchCursor {
+
+    // Regular elasticsearch is hidden behind some proxy under this path ¯\_(ツ)_/¯
+    static final String PATH_PREFIX = "/elasticsearch";
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /* Parts of a search response SearchResponseReader reads, the rest of the envelope is dropped by elastic */
+    static final String SEARCH_FILTER_PATH = "pit_id,_scroll_id,hits.total,hits.hits._id,hits.hits._source,hits.hits.sort";
+
+    protected final RestClient client;
+    protected final SearchQuery query;
+    protected final SearchResponseReader reader;
+
+    ElasticCursor(RestClient client, SearchQuery query, SearchResponseReader reader) {
+        this.client = client;
+        this.query = query;
+        this.reader = reader;
+    }
+
+    /**
+     * @return a search body with the page size, the query string, the range (if any), the slice (if any)
+     * and the _source fields (if projected) of the SearchQuery
+     */
+    protected ObjectNode searchBody() {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("size", query.getPageSize());
+        body.set("query", queryNode(query));
+        if (query.isSliced()) {
+            body.putObject("slice").put("id", query.getSliceId()).put("max", query.getSliceMax());
+        }
+        if (query.isProjected()) {
+            ArrayNode includes = body.putObject("_source").putArray("includes");
+            query.getSourceFields().forEach(includes::add);
+        }
+        return body;
+    }
+
+    /**
+     * @param endpoint a search endpoint, with or without parameters
+     * @return the endpoint asking elastic to return only the parts of the response that are read (if projected)
+     */
+    protected String searchEndpoint(String endpoint) {
+        if (!query.isProjected()) return endpoint;
+        return endpoint + (endpoint.contains("?") ? '&' : '?') + "filter_path=" + SEARCH_FILTER_PATH;
+    }
+
+    /**
+     * @return the "query" of a search body: the query string, the range (if any) and the sample (if any) of the SearchQuery
+     */
+    static ObjectNode queryNode(SearchQuery query) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.putObject("query_string").put("query", query.getTerms());
+
+        if (query.isRanged()) {
+            // El rango va como filter: no calcula score y elastic lo puede cachear
+            ObjectNode queryString = node;
+            node = MAPPER.createObjectNode();
+            ObjectNode bool = node.putObject("bool");
+            bool.putArray("must").add(queryString);
+            ObjectNode range = bool.putArray("filter").addObject().putObject("range").putObject(query.getSortField());
+            if (query.getRangeFrom() != null) range.put("gte", query.getRangeFrom());
+            if (query.getRangeTo() != null) range.put("lte", query.getRangeTo());
+            range.put("format", "epoch_millis");
+        }
+
+        if (query.isSampled()) {
+            // El score pasa a ser un random uniforme en [0, 1) por documento: quedan los que superan 1 - rate,
+            // cada uno con probabilidad rate sin importar el orden ni el slice en que se lean
+            ObjectNode filtered = node;
+            node = MAPPER.createObjectNode();
+            ObjectNode functionScore = node.putObject("function_score");
+            functionScore.set("query", filtered);
+            functionScore.putObject("random_score").put("seed", query.getSampleSeed()).put("field", "_seq_no");
+            functionScore.put("boost_mode", "replace");
+            functionScore.put("min_score", 1.0 - query.getSampleRate());
+        }
+        return node;
+    }
+
+    /**
+     * Counts the hits of a query with the _count endpoint (slices and sample are ignored)
+     * @param client the shared client
+     * @param query the index, terms and range (if any)
+     * @return the number of hits
+     * @throws IOException on communication errors with elasticsearch
+     */
+    static long count(RestClient client, SearchQuery query) throws IOException {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.set("query", queryNode(query.toBuilder().sampleRate(0.0).build()));
+        Request request = new Request("POST", String.format("%s/%s/_count", PATH_PREFIX, query.getIndex()));
+        request.setEntity(new NStringEntity(MAPPER.writeValueAsString(body), ContentType.APPLICATION_JSON));
+        Response response = client.performRequest(request);
+        return MAPPER.readTree(response.getEntity().getContent()).path("count").asLong();
+    }
+
+    /**
+     * Sends a request and parses its response as a search response
+     */
+    protected SearchPage search(String method, String endpoint, ObjectNode body) throws IOException {
+        Response response = send(method, endpoint, body);
+        return reader.read(response.getEntity().getContent());
+    }
+
+    protected Response send(String method, String endpoint, ObjectNode body) throws IOException {
+        Request request = new Request(method, PATH_PREFIX + endpoint);
+        if (body != null) {
+            request.setEntity(new NStringEntity(MAPPER.writeValueAsString(body), ContentType.APPLICATION_JSON));
+        }
+        return client.performRequest(request);
+    }
+
+    /**
+     * Sends a request whose failure should not stop the analysis (i.e. releasing resources)
+     */
+    protected void sendQuietly(String method, String endpoint, ObjectNode body) {
+        try {
+            send(method, endpoint, body);
+        } catch (IOException e) {
+            System.err.println(String.format("WARN: %s %s failed: %s", method, endpoint, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.ReplacementRule;
+import com.gastonmartin.util.AhoCorasick;
+import com.gastonmartin.util.RegexLiterals;
+import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of the rules in expressions.txt, compiled once.
+ * Each thread gets its own array of reusable Matchers (Matcher is not thread safe, Pattern is).
+ * A new instance is built when the file changes, so a snapshot never changes under a running thread.
+ * <p>
+ * Most rules are anchored on some literal text (i.e "[event:multiPost]"), so at load time the literals
+ * required by each regex are extracted and indexed in an Aho-Corasick automaton. For each line a single
+ * scan tells which rules may match, and only those are run. Rules without literals are always run.
+ */
+public class ExpressionSet {
+
+    @Getter
+    private final List<ReplacementRule> rules;
+
+    /* Last modification time of the file when this snapshot was read */
+    @Getter
+    private final FileTime lastModified;
+
+    /* SHA-1 of the rules in order, tells whether two snapshots transform the same way (see CheckpointStore) */
+    @Getter
+    private final String digest;
+
+    /* Literal prefilter: keyword i of the automaton is required by rule keywordRule[i] */
+    private final AhoCorasick automaton;
+    private final int[] keywordRule;
+
+    /* Rules without an extractable literal */
+    private final BitSet alwaysRun = new BitSet();
+
+    private final ThreadLocal<Scratch> scratch;
+
+    private ExpressionSet(List<ReplacementRule> rules, FileTime lastModified) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.lastModified = lastModified;
+
+        StringBuilder text = new StringBuilder();
+        for (ReplacementRule rule : rules) {
+            text.append(rule.getPattern().pattern()).append('|').append(rule.getReplacement()).append('\n');
+        }
+        this.digest = DigestUtils.sha1Hex(text.toString());
+
+        List<String> keywords = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            List<String> literals = RegexLiterals.requiredLiterals(rules.get(i).getPattern().pattern());
+            if (literals == null) {
+                alwaysRun.set(i);
+            } else {
+                for (String literal : literals) {
+                    keywords.add(literal);
+                    owners.add(i);
+                }
+            }
+        }
+        this.automaton = new AhoCorasick(keywords);
+        this.keywordRule = owners.stream().mapToInt(Integer::intValue).toArray();
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+    }
+
+    /**
+     * Reads and compiles all the expressions of the given file.
+     * Fails fast (RuntimeException) if some line is malformed or some regex does not compile
+     * @param expressionsPath path to expressions.txt
+     * @return a new compiled ExpressionSet
+     */
+    public static ExpressionSet load(Path expressionsPath) {
+        try {
+            // Leo la fecha antes que el contenido: si cambia en el medio se recarga en el proximo chequeo
+            FileTime lastModified = Files.getLastModifiedTime(expressionsPath);
+            List<ReplacementRule> rules = new ArrayList<>();
+            for (String line : Files.readAllLines(expressionsPath, Charset.defaultCharset())) {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\|");
+                if (parts.length != 2) {
+                    System.err.println("ERROR: reading expressions, line:\n" + line + "\nExpected 2 expressions separated by |, but got " + parts.length);
+                    throw new RuntimeException("unexpected number of expressions");
+                }
+                rules.add(new ReplacementRule(Pattern.compile(parts[0]), parts[1]));
+            }
+            return new ExpressionSet(rules, lastModified);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Applies every rule, in file order, to the given line.
+     * Rules whose required literals are not in the line are skipped. Since a replacement may introduce
+     * text that a later rule expects, the candidates are recomputed every time a rule changes the line.
+     * @param line the log message
+     * @return the message after all replacements
+     */
+    public String apply(String line) {
+        Scratch s = scratch.get();
+        BitSet candidates = s.candidates;
+        findCandidates(line, s);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Matcher m = s.matchers[i].reset(line);
+            if (m.find()) {
+                line = m.replaceAll(rules.get(i).getReplacement());
+                findCandidates(line, s);
+            }
+        }
+        return line;
+    }
+
+    private void findCandidates(String line, Scratch s) {
+        s.found.clear();
+        automaton.scan(line, s.found);
+        s.candidates.clear();
+        s.candidates.or(alwaysRun);
+        for (int k = s.found.nextSetBit(0); k >= 0; k = s.found.nextSetBit(k + 1)) {
+            s.candidates.set(keywordRule[k]);
+        }
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * @return how many rules are filtered by literals (the rest run for every line)
+     */
+    public int indexedSize() {
+        return rules.size() - alwaysRun.cardinality();
+    }
+
+    /* Per thread working objects, Matchers are not thread safe */
+    private class Scratch {
+        final Matcher[] matchers = new Matcher[rules.size()];
+        final BitSet candidates = new BitSet(rules.size());
+        final BitSet found = new BitSet(keywordRule.length);
+
+        Scratch() {
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = rules.get(i).getPattern().matcher("");
+            }
+        }
+    }
+}
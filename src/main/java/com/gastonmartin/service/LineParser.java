@@ -0,0 +1,19 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.LogHit;
+
+import java.io.IOException;
+
+/**
+ * Turns one line of a local file into a hit, as if it had been obtained from elasticsearch.
+ * Implementations must be thread safe.
+ */
+public interface LineParser {
+
+    /**
+     * @param line a non empty line, without line break
+     * @return the hit with the message and tags of the line
+     * @throws IOException if the line is not valid for the format
+     */
+    LogHit parse(String line) throws IOException;
+}
@@ -0,0 +1,135 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.util.Compression;
+import com.gastonmartin.util.GzipMembers;
+import com.gastonmartin.util.LineReader;
+import com.gastonmartin.util.MappedLineReader;
+import com.gastonmartin.util.StreamLineReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Reads hits from local files for the offline mode. Files are split in chunks that end on a line break
+ * (see {@link MappedLineReader}) and several instances take chunks from the same queue, so big files are read
+ * and parsed by several threads, each one feeding batches of lines to the {@link PagePipeline}.
+ * Compressed files are decompressed on the fly: gzip files are split in runs of whole members
+ * (see {@link GzipMembers}), zstd files are read as a single chunk. Directories of rotated files are
+ * decompressed in parallel, one chunk per reader.
+ */
+class LocalFileSource implements PagePipeline.PageSource {
+
+    /**
+     * A region of a file and how to parse its lines
+     */
+    static final class Chunk {
+        final Path file;
+        final long start;
+        final long end;
+        final Compression compression;
+        final LineParser parser;
+
+        Chunk(Path file, long start, long end, Compression compression, LineParser parser) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.compression = compression;
+            this.parser = parser;
+        }
+
+        LineReader open() throws IOException {
+            if (compression == Compression.NONE) return new MappedLineReader(file, start, end);
+            return new StreamLineReader(compression.open(file, start, end));
+        }
+    }
+
+    private final Queue<Chunk> chunks;
+    private final int batchSize;
+    private final LongAdder invalidLines;
+
+    private Chunk chunk;
+    private LineReader reader;
+
+    /**
+     * @param chunks chunks shared by all the instances (see {@link #split(List, long, Function)})
+     * @param batchSize lines per batch
+     * @param invalidLines counter of lines that could not be parsed (they are skipped)
+     */
+    LocalFileSource(Queue<Chunk> chunks, int batchSize, LongAdder invalidLines) {
+        this.chunks = chunks;
+        this.batchSize = batchSize;
+        this.invalidLines = invalidLines;
+    }
+
+    /**
+     * Splits files in chunks of about {@code chunkBytes} bytes
+     * @param files the files, read in order
+     * @param chunkBytes approximate size of a chunk
+     * @param parsers the parser for the lines of each file
+     * @return a thread safe queue with the chunks of all the files
+     * @throws IOException if a file can not be read
+     */
+    static Queue<Chunk> split(List<Path> files, long chunkBytes, Function<Path, LineParser> parsers) throws IOException {
+        Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        for (Path file : files) {
+            LineParser parser = parsers.apply(file);
+            Compression compression = Compression.detect(file);
+            List<long[]> regions;
+            switch (compression) {
+                case GZIP:
+                    regions = GzipMembers.split(file, chunkBytes);
+                    break;
+                case ZSTD:
+                    regions = Collections.singletonList(new long[]{0L, Files.size(file)});
+                    break;
+                default:
+                    regions = MappedLineReader.split(file, chunkBytes);
+            }
+            for (long[] region : regions) {
+                chunks.add(new Chunk(file, region[0], region[1], compression, parser));
+            }
+        }
+        return chunks;
+    }
+
+    @Override
+    public List<LogHit> next() throws IOException {
+        List<LogHit> hits = new ArrayList<>(batchSize);
+        while (hits.size() < batchSize) {
+            if (reader == null) {
+                chunk = chunks.poll();
+                if (chunk == null) break;
+                reader = chunk.open();
+            }
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (IOException e) {
+                reader.close();
+                reader = null;
+                throw new IOException(String.format("Error reading %s at [%d, %d): %s", chunk.file, chunk.start, chunk.end, e), e);
+            }
+            if (line == null) {
+                reader.close();
+                reader = null;
+                continue;
+            }
+            if (line.isEmpty()) continue;
+            try {
+                hits.add(chunk.parser.parse(line));
+            } catch (IOException e) {
+                invalidLines.increment();
+            }
+        }
+        return hits;
+    }
+}
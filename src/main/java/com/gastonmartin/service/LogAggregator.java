@@ -0,0 +1,192 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.ExactRanking;
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.model.Ranking;
+import com.gastonmartin.model.Tags;
+import com.gastonmartin.util.HyperLogLog;
+import com.gastonmartin.util.Utils;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Consumes transformed hits one at a time and keeps all the rankings and totals
+ * the reports need, so documents can be dropped as soon as they are aggregated.
+ * Not thread safe: use one instance per thread (or per page) and {@link #merge(LogAggregator)} them.
+ */
+public class LogAggregator {
+
+    /* Lines and original bytes grouped by transformed message */
+    @Getter
+    private final Ranking byMessage;
+
+    /* Lines and original bytes grouped by tags.source */
+    @Getter
+    private final Ranking bySource;
+
+    /* Lines and original bytes grouped by tags.scope */
+    @Getter
+    private final Ranking byScope;
+
+    /* Create the rankings of new aggregators like this one, see emptyCopy() */
+    private final Supplier<Ranking> messageRankings;
+    private final Supplier<Ranking> sourceRankings;
+    private final Supplier<Ranking> scopeRankings;
+
+    @Getter
+    private long lineCount;
+
+    @Getter
+    private long totalBytesBeforeReplaces;
+
+    @Getter
+    private long totalBytesAfterReplaces;
+
+    /* Documents the lines are a uniform random sample of, 0 when the lines are all of them (see SampleEstimator) */
+    @Getter @Setter
+    private long population;
+
+    /* When disabled only the message rankings are kept (i.e. source and scope come from elastic aggregations) */
+    @Getter @Setter
+    private boolean groupTags = true;
+
+    /* When enabled keeps the first value seen of every tag (see LogProcessorService.dumpTags) */
+    @Getter @Setter
+    private boolean sampleTags;
+
+    @Getter
+    private final Map<String, String> sampledTags = new HashMap<>();
+
+    /* Precision of the distinct counters, 0 disables them (2^precision bytes per counter) */
+    @Getter @Setter
+    private int cardinalityPrecision;
+
+    /* Distinct transformed messages per tags.source */
+    @Getter
+    private final Map<String, HyperLogLog> messagesBySource = new HashMap<>();
+
+    /* Distinct original values of each tag of Tags.UNDIFERENTIATE */
+    @Getter
+    private final Map<String, HyperLogLog> valuesByTag = new HashMap<>();
+
+    /**
+     * An aggregator with exact rankings
+     */
+    public LogAggregator() {
+        this(ExactRanking::new, ExactRanking::new, ExactRanking::new);
+    }
+
+    /**
+     * @param messageRankings creates the ranking by message (see RankingMode)
+     * @param sourceRankings creates the ranking by tags.source
+     * @param scopeRankings creates the ranking by tags.scope
+     */
+    public LogAggregator(Supplier<Ranking> messageRankings, Supplier<Ranking> sourceRankings, Supplier<Ranking> scopeRankings) {
+        this.messageRankings = messageRankings;
+        this.sourceRankings = sourceRankings;
+        this.scopeRankings = scopeRankings;
+        this.byMessage = messageRankings.get();
+        this.bySource = sourceRankings.get();
+        this.byScope = scopeRankings.get();
+    }
+
+    /**
+     * @return a new empty aggregator with the same kind of rankings and settings, i.e. for another thread
+     */
+    public LogAggregator emptyCopy() {
+        LogAggregator copy = new LogAggregator(messageRankings, sourceRankings, scopeRankings);
+        copy.setGroupTags(groupTags);
+        copy.setSampleTags(sampleTags);
+        copy.setCardinalityPrecision(cardinalityPrecision);
+        return copy;
+    }
+
+    /**
+     * Accounts a hit whose message has already been transformed
+     * @param hit the hit as obtained from elasticsearch (with its original message)
+     * @param message the transformed message
+     */
+    public void accept(LogHit hit, String message) {
+        accept(hit, message, Utils.hash64(message));
+    }
+
+    /**
+     * Accounts a hit whose message has already been transformed and hashed, so it is hashed once for all rankings
+     * @param hit the hit as obtained from elasticsearch (with its original message)
+     * @param message the transformed message
+     * @param fingerprint {@link Utils#hash64(String)} of the transformed message
+     */
+    public void accept(LogHit hit, String message, long fingerprint) {
+        long bytes = Utils.utf8Length(hit.getMessage());
+        Map<String, String> tags = hit.getTags();
+
+        lineCount++;
+        totalBytesBeforeReplaces += bytes;
+        totalBytesAfterReplaces += Utils.utf8Length(message);
+
+        byMessage.addFingerprinted(message, fingerprint, bytes);
+        if (groupTags) {
+            bySource.add(tags.getOrDefault("source", "NO_SOURCE"), bytes);
+            byScope.add(tags.getOrDefault("scope", "NO_SCOPE"), bytes);
+        }
+
+        if (sampleTags) {
+            tags.forEach(sampledTags::putIfAbsent);
+        }
+
+        if (cardinalityPrecision > 0) {
+            distinct(messagesBySource, tags.getOrDefault("source", "NO_SOURCE")).addHash(fingerprint);
+            for (String tag : Tags.UNDIFERENTIATE) {
+                String value = tags.get(tag);
+                if (value != null) distinct(valuesByTag, tag).add(value);
+            }
+        }
+    }
+
+    private HyperLogLog distinct(Map<String, HyperLogLog> counters, String key) {
+        HyperLogLog counter = counters.get(key);
+        if (counter == null) {
+            counter = new HyperLogLog(cardinalityPrecision);
+            counters.put(key, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Adds totals restored from a saved aggregate (see CheckpointStore), the rankings are restored directly
+     */
+    void addTotals(long lines, long bytesBeforeReplaces, long bytesAfterReplaces) {
+        lineCount += lines;
+        totalBytesBeforeReplaces += bytesBeforeReplaces;
+        totalBytesAfterReplaces += bytesAfterReplaces;
+    }
+
+    /**
+     * Adds all rankings and totals of another aggregator into this one
+     * @param other another LogAggregator
+     */
+    public void merge(LogAggregator other) {
+        byMessage.merge(other.byMessage);
+        bySource.merge(other.bySource);
+        byScope.merge(other.byScope);
+        lineCount += other.lineCount;
+        totalBytesBeforeReplaces += other.totalBytesBeforeReplaces;
+        totalBytesAfterReplaces += other.totalBytesAfterReplaces;
+        population += other.population;
+        other.sampledTags.forEach(sampledTags::putIfAbsent);
+        mergeDistinct(messagesBySource, other.messagesBySource);
+        mergeDistinct(valuesByTag, other.valuesByTag);
+    }
+
+    private static void mergeDistinct(Map<String, HyperLogLog> counters, Map<String, HyperLogLog> others) {
+        others.forEach((key, other) -> {
+            HyperLogLog counter = counters.get(key);
+            if (counter == null) counters.put(key, HyperLogLog.fromBytes(other.toBytes()));
+            else counter.merge(other);
+        });
+    }
+}
@@ -1,46 +1,58 @@
 package com.gastonmartin.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.gastonmartin.model.LogMessage;
+import com.gastonmartin.model.FetchMode;
+import com.gastonmartin.model.LineFormat;
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.model.Ranking;
+import com.gastonmartin.model.RankingMode;
+import com.gastonmartin.model.SearchPage;
+import com.gastonmartin.model.SearchQuery;
 import com.gastonmartin.model.Tags;
+import com.gastonmartin.model.TemplateDictionary;
+import com.gastonmartin.util.Compression;
+import com.gastonmartin.util.HyperLogLog;
 import com.gastonmartin.util.Utils;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import org.apache.http.HttpHost;
-import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Request;
-import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestHighLevelClient;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToLongFunction;
 
 import static java.lang.String.format;
-import static java.util.stream.Collectors.*;
 
 
 /**
  * Class for interacting with elasticsearch service
  * Requires some configuration from config.properties file to figure out which host to connect
+ * Holds a pooled connection to elasticsearch for its whole lifetime, so it must be closed when done.
  *
  */
-public class LogProcessorService {
+public class LogProcessorService implements Closeable {
 
     /* Static parameters */
 
@@ -49,6 +61,43 @@ public class LogProcessorService {
     private static final String APPNAME_PROPERTY = "APP_NAME";
     private static final String PAGE_SIZE_PROPERTY = "PAGE_SIZE";
     private static final String MAX_RESULTS_PROPERTY = "MAX_RESULTS";
+    private static final String MAX_CONNECTIONS_PROPERTY = "ELASTIC_MAX_CONNECTIONS";
+    private static final String KEEP_ALIVE_PROPERTY = "ELASTIC_KEEP_ALIVE_MILLIS";
+    private static final String CONNECT_TIMEOUT_PROPERTY = "ELASTIC_CONNECT_TIMEOUT_MILLIS";
+    private static final String SOCKET_TIMEOUT_PROPERTY = "ELASTIC_SOCKET_TIMEOUT_MILLIS";
+    private static final String FETCH_MODE_PROPERTY = "FETCH_MODE";
+    private static final String SORT_FIELD_PROPERTY = "SORT_FIELD";
+    private static final String KEEP_ALIVE_CURSOR_PROPERTY = "CURSOR_KEEP_ALIVE";
+    private static final String PREFETCH_PAGES_PROPERTY = "PREFETCH_PAGES";
+    private static final String TRANSFORM_WORKERS_PROPERTY = "TRANSFORM_WORKERS";
+    private static final String SLICES_PROPERTY = "SLICES";
+    private static final String LOCAL_FORMAT_PROPERTY = "LOCAL_FORMAT";
+    private static final String LOCAL_LINE_PATTERN_PROPERTY = "LOCAL_LINE_PATTERN";
+    private static final String LOCAL_LINE_FIELDS_PROPERTY = "LOCAL_LINE_FIELDS";
+    private static final String LOCAL_CHUNK_MB_PROPERTY = "LOCAL_CHUNK_MB";
+    private static final String CACHE_DIR_PROPERTY = "CACHE_DIR";
+    private static final String CACHE_MAX_MB_PROPERTY = "CACHE_MAX_MB";
+    private static final String STATE_DIR_PROPERTY = "STATE_DIR";
+    private static final String CHECKPOINT_PAGES_PROPERTY = "CHECKPOINT_PAGES";
+    private static final String INCREMENTAL_LAG_SECONDS_PROPERTY = "INCREMENTAL_LAG_SECONDS";
+    private static final String PROJECT_FIELDS_PROPERTY = "PROJECT_FIELDS";
+    private static final String RANKING_MESSAGE_PROPERTY = "RANKING_MESSAGE";
+    private static final String RANKING_SOURCE_PROPERTY = "RANKING_SOURCE";
+    private static final String RANKING_SCOPE_PROPERTY = "RANKING_SCOPE";
+    private static final String SKETCH_TOP_K_PROPERTY = "SKETCH_TOP_K";
+    private static final String AGGREGATIONS_PROPERTY = "AGGREGATIONS";
+    private static final String AGG_SOURCE_FIELD_PROPERTY = "AGG_SOURCE_FIELD";
+    private static final String AGG_SCOPE_FIELD_PROPERTY = "AGG_SCOPE_FIELD";
+    private static final String AGG_BYTES_FIELD_PROPERTY = "AGG_BYTES_FIELD";
+    private static final String AGG_SIZE_PROPERTY = "AGG_SIZE";
+    private static final String CARDINALITY_PRECISION_PROPERTY = "CARDINALITY_PRECISION";
+    private static final String SAMPLE_PROPERTY = "SAMPLE";
+    private static final String SAMPLE_SEED_PROPERTY = "SAMPLE_SEED";
+    private static final String PARALLEL_DAYS_PROPERTY = "PARALLEL_DAYS";
+    private static final String PARALLEL_INDICES_PROPERTY = "PARALLEL_INDICES";
+    private static final String TRANSFORM_CACHE_SIZE_PROPERTY = "TRANSFORM_CACHE_SIZE";
+    private static final String PRINT_MESSAGES_PROPERTY = "PRINT_MESSAGES";
+    private static final String TREND_SIZE_PROPERTY = "TREND_SIZE";
 
     /* Page size when querying elastic */
     @Getter @Setter
@@ -56,6 +105,30 @@ public class LogProcessorService {
 
     private static final int DEFAULT_PAGE_SIZE = 500;
     private static final int DEFAULT_MAX_RESULTS = 10000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 10;
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000L;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 99999;
+    private static final String DEFAULT_SORT_FIELD = "timestamp";
+    private static final String DEFAULT_CURSOR_KEEP_ALIVE = "2m";
+    private static final int DEFAULT_PREFETCH_PAGES = 4;
+    private static final String DEFAULT_LOCAL_LINE_PATTERN = "^(.*)$";
+    private static final String DEFAULT_LOCAL_LINE_FIELDS = "message";
+    private static final long DEFAULT_LOCAL_CHUNK_MB = 64L;
+    private static final String DEFAULT_CACHE_DIR = "cache";
+    private static final long DEFAULT_CACHE_MAX_MB = 1024L;
+    private static final String DEFAULT_STATE_DIR = "state";
+    private static final int DEFAULT_CHECKPOINT_PAGES = 10;
+    private static final long DEFAULT_INCREMENTAL_LAG_SECONDS = 60L;
+    private static final String DEFAULT_AGG_SOURCE_FIELD = "tags.source.keyword";
+    private static final String DEFAULT_AGG_SCOPE_FIELD = "tags.scope.keyword";
+    private static final int DEFAULT_AGG_SIZE = 1000;
+    private static final int DEFAULT_SKETCH_TOP_K = 10000;
+    private static final int DEFAULT_CARDINALITY_PRECISION = 12;
+    private static final int DEFAULT_PARALLEL_DAYS = 7;
+    private static final int DEFAULT_PARALLEL_INDICES = 8;
+    private static final int DEFAULT_TRANSFORM_CACHE_SIZE = 10000;
+    private static final int DEFAULT_TREND_SIZE = 100;
 
     /* Private variables for storing config values */
     private final String HOSTNAME;
@@ -64,17 +137,142 @@ public class LogProcessorService {
     @Getter @Setter
     private int maxResults;
 
+    /* How pages are requested to elastic, see FetchMode */
+    @Getter @Setter
+    private FetchMode fetchMode;
+
+    private final String sortField;
+    private final String cursorKeepAlive;
+
+    /* Max number of pages fetched ahead of the transform workers, see PagePipeline */
+    @Getter @Setter
+    private int prefetchPages;
+
+    /* Number of threads transforming pages, see PagePipeline. Set before the first run, the pool is created then */
+    @Getter @Setter
+    private int transformWorkers;
+
+    /* Transform threads shared by all the pipelines (concurrent days included), shut down in close() */
+    private ForkJoinPool transformPool;
+
+    /* Print every message after the replacements (slow: all the transform threads share the console) */
+    @Getter @Setter
+    private boolean printMessages;
+
+    /* Number of slices read concurrently (PIT and SCROLL only), each one by its own fetcher */
+    @Getter @Setter
+    private int slices;
+
+    /* Format of local files in offline mode, see LineFormat */
+    @Getter @Setter
+    private LineFormat localFormat;
+
+    /* Parser of plain log lines in offline mode */
+    private final PatternLineParser localLineParser;
+
+    /* Approximate size of the chunks local files are split in */
+    private final long localChunkBytes;
+
+    /* Hits downloaded for past days, replayed by later runs of the same query. Null when disabled (CACHE_MAX_MB=0) */
+    @Getter
+    private final PageCache pageCache;
+
+    /* Download again even if the query is in the page cache (the new download replaces the cached one) */
+    @Getter @Setter
+    private boolean refreshCache;
+
+    /* Only analyze the hits newer than the checkpoint of the previous run and merge them in, see CheckpointStore */
+    @Getter @Setter
+    private boolean incremental;
+
+    /* Discard the checkpoint and start the incremental analysis from zero */
+    @Getter @Setter
+    private boolean resetCheckpoint;
+
+    /* Checkpoints of the incremental runs */
+    private final CheckpointStore checkpointStore;
+
+    /* An incremental run saves its checkpoint every this many pages (and when done) */
+    private final int checkpointPages;
+
+    /* Hits newer than this are left for the next incremental run, they may not all be indexed yet */
+    private final long incrementalLagMillis;
+
+    /* Only request the fields of _source (and of the response) the analysis reads, see sourceFields() */
+    @Getter @Setter
+    private boolean projectFields;
+
+    /* How each ranking is kept, see RankingMode */
+    @Getter @Setter
+    private RankingMode messageRanking;
+
+    @Getter @Setter
+    private RankingMode sourceRanking;
+
+    @Getter @Setter
+    private RankingMode scopeRanking;
+
+    /* Keys kept by SKETCH rankings */
+    @Getter @Setter
+    private int sketchTopK;
+
+    /* Precision of the HyperLogLog distinct counters (2^precision bytes each), 0 disables them */
+    @Getter @Setter
+    private int cardinalityPrecision;
+
+    /* Read a uniform random sample of MAX_RESULTS hits of the whole index instead of the first ones, see SampleEstimator */
+    @Getter @Setter
+    private boolean sample;
+
+    /* Seed of the random sample, null for a new one each run */
+    @Getter @Setter
+    private Integer sampleSeed;
+
+    /* Days of a range analyzed at the same time, see processRange() */
+    @Getter @Setter
+    private int parallelDays;
+
+    /* Indices (of any application and day) analyzed at the same time, see processApps() */
+    @Getter @Setter
+    private int parallelIndices;
+
+    /* Messages of the day over day trend table, the ones with more lines in the whole range */
+    @Getter @Setter
+    private int trendSize;
+
+    /* Source and scope rankings come from elastic aggregations over all the documents, see TagAggregation */
+    @Getter @Setter
+    private boolean aggregations;
+
+    private final TagAggregation tagAggregation;
+
+
+    /* Client (and its connection pool) shared by all the requests, closed in close() */
+    private final RestClient client;
 
     /* Reference to an instance of ReplacementsService */
     private final ReplacementsService replacementsService;
 
+    /* Replaces tag values inside messages, see Tags */
+    private final TagSubstituter tagSubstituter = new TagSubstituter();
+
+    /* Fingerprints and texts of the transformed messages, shared by all the message rankings */
+    private final TemplateDictionary templates = new TemplateDictionary();
+
+    /* Transformed messages of recent raw messages, null if disabled */
+    private final TransformCache transformCache;
+
+    /* Streaming parser for search responses */
+    private final SearchResponseReader responseReader = new SearchResponseReader();
+
     /* global ObjectMapper for conversion of JSON */
     private static ObjectMapper mapper = new ObjectMapper()
             .enable(SerializationFeature.INDENT_OUTPUT)
             .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
 
     /**
-     * Class constructor. Reads values from config.properties and initializes an instance of ReplacementsService
+     * Class constructor. Reads values from config.properties, initializes an instance of ReplacementsService
+     * and builds the elasticsearch client with its connection pool
      */
     public LogProcessorService() {
         try (InputStream input = LogProcessorService.class.getClassLoader().getResourceAsStream("config.properties")) {
@@ -92,12 +290,64 @@ public class LogProcessorService {
             APPNAME = prop.getProperty(APPNAME_PROPERTY);
             pageSize = Integer.parseInt(prop.getProperty(PAGE_SIZE_PROPERTY, String.valueOf(DEFAULT_PAGE_SIZE)));
             maxResults = Integer.parseInt(prop.getProperty(MAX_RESULTS_PROPERTY, String.valueOf(DEFAULT_MAX_RESULTS)));
+            fetchMode = FetchMode.valueOf(prop.getProperty(FETCH_MODE_PROPERTY, FetchMode.PIT.name()).trim().toUpperCase());
+            sortField = prop.getProperty(SORT_FIELD_PROPERTY, DEFAULT_SORT_FIELD);
+            cursorKeepAlive = prop.getProperty(KEEP_ALIVE_CURSOR_PROPERTY, DEFAULT_CURSOR_KEEP_ALIVE);
+            prefetchPages = Integer.parseInt(prop.getProperty(PREFETCH_PAGES_PROPERTY, String.valueOf(DEFAULT_PREFETCH_PAGES)));
+            // 0 (o ausente) significa un worker por procesador
+            transformWorkers = Integer.parseInt(prop.getProperty(TRANSFORM_WORKERS_PROPERTY, "0"));
+            if (transformWorkers <= 0) transformWorkers = Runtime.getRuntime().availableProcessors();
+            printMessages = Boolean.parseBoolean(prop.getProperty(PRINT_MESSAGES_PROPERTY, "false").trim());
+            slices = Integer.parseInt(prop.getProperty(SLICES_PROPERTY, "1"));
+            localFormat = LineFormat.valueOf(prop.getProperty(LOCAL_FORMAT_PROPERTY, LineFormat.AUTO.name()).trim().toUpperCase());
+            localLineParser = new PatternLineParser(
+                    prop.getProperty(LOCAL_LINE_PATTERN_PROPERTY, DEFAULT_LOCAL_LINE_PATTERN),
+                    prop.getProperty(LOCAL_LINE_FIELDS_PROPERTY, DEFAULT_LOCAL_LINE_FIELDS));
+            localChunkBytes = Long.parseLong(prop.getProperty(LOCAL_CHUNK_MB_PROPERTY, String.valueOf(DEFAULT_LOCAL_CHUNK_MB))) << 20;
+            long cacheMaxBytes = Long.parseLong(prop.getProperty(CACHE_MAX_MB_PROPERTY, String.valueOf(DEFAULT_CACHE_MAX_MB))) << 20;
+            pageCache = cacheMaxBytes > 0
+                    ? new PageCache(Paths.get(prop.getProperty(CACHE_DIR_PROPERTY, DEFAULT_CACHE_DIR)), cacheMaxBytes)
+                    : null;
+            checkpointStore = new CheckpointStore(Paths.get(prop.getProperty(STATE_DIR_PROPERTY, DEFAULT_STATE_DIR)));
+            checkpointPages = Math.max(1, Integer.parseInt(prop.getProperty(CHECKPOINT_PAGES_PROPERTY, String.valueOf(DEFAULT_CHECKPOINT_PAGES))));
+            incrementalLagMillis = Long.parseLong(prop.getProperty(INCREMENTAL_LAG_SECONDS_PROPERTY,
+                    String.valueOf(DEFAULT_INCREMENTAL_LAG_SECONDS))) * 1000L;
+
+            projectFields = Boolean.parseBoolean(prop.getProperty(PROJECT_FIELDS_PROPERTY, "true").trim());
+            messageRanking = rankingMode(prop, RANKING_MESSAGE_PROPERTY);
+            sourceRanking = rankingMode(prop, RANKING_SOURCE_PROPERTY);
+            scopeRanking = rankingMode(prop, RANKING_SCOPE_PROPERTY);
+            sketchTopK = Integer.parseInt(prop.getProperty(SKETCH_TOP_K_PROPERTY, String.valueOf(DEFAULT_SKETCH_TOP_K)));
+            aggregations = Boolean.parseBoolean(prop.getProperty(AGGREGATIONS_PROPERTY, "false").trim());
+            sample = Boolean.parseBoolean(prop.getProperty(SAMPLE_PROPERTY, "false").trim());
+            String seed = prop.getProperty(SAMPLE_SEED_PROPERTY, "").trim();
+            sampleSeed = seed.isEmpty() ? null : Integer.valueOf(seed);
+            parallelDays = Math.max(1, Integer.parseInt(prop.getProperty(PARALLEL_DAYS_PROPERTY, String.valueOf(DEFAULT_PARALLEL_DAYS)).trim()));
+            parallelIndices = Math.max(1, Integer.parseInt(prop.getProperty(PARALLEL_INDICES_PROPERTY, String.valueOf(DEFAULT_PARALLEL_INDICES)).trim()));
+            trendSize = Integer.parseInt(prop.getProperty(TREND_SIZE_PROPERTY, String.valueOf(DEFAULT_TREND_SIZE)).trim());
+            int transformCacheSize = Integer.parseInt(prop.getProperty(TRANSFORM_CACHE_SIZE_PROPERTY,
+                    String.valueOf(DEFAULT_TRANSFORM_CACHE_SIZE)).trim());
+            transformCache = transformCacheSize > 0 ? new TransformCache(transformCacheSize, tagSubstituter.getTagNames()) : null;
+            cardinalityPrecision = Integer.parseInt(prop.getProperty(CARDINALITY_PRECISION_PROPERTY,
+                    String.valueOf(DEFAULT_CARDINALITY_PRECISION)).trim());
 
             if (HOSTNAME == null) throw new RuntimeException("Missing property " + HOSTNAME_PROPERY);
             if (APPNAME == null) throw new RuntimeException("Missing property " + APPNAME_PROPERTY);
 
             replacementsService = new ReplacementsService();
 
+            client = buildClient(
+                    Integer.parseInt(prop.getProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(DEFAULT_MAX_CONNECTIONS))),
+                    Long.parseLong(prop.getProperty(KEEP_ALIVE_PROPERTY, String.valueOf(DEFAULT_KEEP_ALIVE_MILLIS))),
+                    Integer.parseInt(prop.getProperty(CONNECT_TIMEOUT_PROPERTY, String.valueOf(DEFAULT_CONNECT_TIMEOUT_MILLIS))),
+                    Integer.parseInt(prop.getProperty(SOCKET_TIMEOUT_PROPERTY, String.valueOf(DEFAULT_SOCKET_TIMEOUT_MILLIS))));
+
+            tagAggregation = new TagAggregation(client,
+                    prop.getProperty(AGG_SOURCE_FIELD_PROPERTY, DEFAULT_AGG_SOURCE_FIELD),
+                    prop.getProperty(AGG_SCOPE_FIELD_PROPERTY, DEFAULT_AGG_SCOPE_FIELD),
+                    prop.getProperty(AGG_BYTES_FIELD_PROPERTY, ""),
+                    Integer.parseInt(prop.getProperty(AGG_SIZE_PROPERTY, String.valueOf(DEFAULT_AGG_SIZE))));
+
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException((e));
@@ -105,12 +355,20 @@ public class LogProcessorService {
     }
 
 
+    private static RankingMode rankingMode(Properties prop, String property) {
+        return RankingMode.valueOf(prop.getProperty(property, RankingMode.EXACT.name()).trim().toUpperCase());
+    }
+
     /**
      * Given an index date (i.e "2020.05.30") connects to elasticsearch as per the configuration
      * obtained in the class constructor (gathered from config.properties), downloads the messages
      * up to a predefined maximum number of results, transform all messaged to obtain more generic
      * messages and <b>write results to several .txt files.</b>
      * <b>This is the main method of this class</b>
+     * When incremental (see {@link #setIncremental(boolean)}) only downloads the messages newer than the previous
+     * run and the files are written with the results of all the runs.
+     * With aggregations (see {@link #setAggregations(boolean)}) the source and scope rankings are computed by
+     * elasticsearch over all the matching documents, the downloaded ones are only used for the message rankings.
      * @param indexDate (optional) the name of the index date, i.e. "2020.05.30". If omitted will use today's index.
      */
     public void process(String indexDate, String searchTerms) {
@@ -118,47 +376,265 @@ public class LogProcessorService {
         if (indexDate == null){
             indexDate = Utils.getTodayIndexName();
         }
-        searchTerms = searchTerms.replaceAll(" ","%20");
-        List<JsonNode> resultados = getLogsFromElasticAndTransform(indexDate, searchTerms);
+        if (incremental && sample) {
+            System.err.println("WARN: incremental runs read all the hits in order, the sample mode is ignored");
+        }
+        LogAggregator aggregate = incremental
+                ? getLogsIncrementallyAndTransform(APPNAME, indexDate, searchTerms)
+                : sample
+                ? getSampleFromElasticAndTransform(APPNAME, indexDate, searchTerms)
+                : getLogsFromElasticAndTransform(APPNAME, indexDate, searchTerms);
+        LogAggregator tagRankings = aggregations ? getTagRankingsFromElastic(APPNAME, indexDate, searchTerms) : aggregate;
+
+        writeReports(Paths.get(""), aggregate, tagRankings);
+    }
 
-        //String pretty = toPrettyString(resultados.get(0));
-        //System.out.println(pretty);
+    /**
+     * Range version of {@link #process(String, String)}: analyzes the daily indices from fromDate to toDate
+     * (both inclusive), up to PARALLEL_DAYS of them at the same time, so the range takes about as long as
+     * its slowest day. Each day is read and aggregated on its own (MAX_RESULTS, the page cache and the
+     * incremental checkpoints are per day) and then merged, and the files are written with the rankings of the
+     * whole range plus tendencia_por_message.txt with the lines of each message day by day.
+     * When sampling, all the days are sampled with the same probability so the sample of the range is uniform and
+     * has about MAX_RESULTS lines in total. Days without index are skipped.
+     * @param fromDate the first index date, i.e. "2020.05.25"
+     * @param toDate the last index date, i.e. "2020.05.31"
+     * @param searchTerms the search terms (usually "*")
+     */
+    public void processRange(@NonNull String fromDate, @NonNull String toDate, String searchTerms) {
+        List<String> days = Utils.getIndexNamesBetween(fromDate, toDate);
+        if (days.isEmpty()) throw new RuntimeException(format("Empty range of dates %s..%s", fromDate, toDate));
+
+        analyzeDays(Collections.singletonList(APPNAME), days, searchTerms, parallelDays, (app, byDay) -> {
+            LogAggregator[] range = mergeDays(byDay);
+            writeReports(Paths.get(""), range[0], range[1]);
+            writeTrend(Paths.get(""), byDay, range[0]);
+        });
+    }
 
-        // Totales
-        Long totalBytesBeforeReplaces = getTotalBytesBeforeReplaces(resultados);
-        Integer totalLineCount = resultados.size();
+    /**
+     * Multi-application version of {@link #processRange(String, String, String)}: analyzes the daily indices of
+     * several applications with the same client, expressions and transform threads, up to PARALLEL_INDICES indices
+     * (of any application and day) at the same time. Each application is analyzed like a range of days on its own
+     * (MAX_RESULTS, the page cache and the checkpoints are per index, a sample is per application) and its files are written to a
+     * directory named after it, as they finish and in order. Then ranking_por_app_*.txt rank the applications by
+     * lines and bytes, and ranking_por_app_source_*.txt the sources of all of them, the top log producers
+     * (with aggregations or sampling, the totals of the whole indices). Applications without indices are skipped.
+     * @param apps the names of the applications, the prefixes of their indices
+     * @param fromDate the first index date, i.e. "2020.05.25"
+     * @param toDate the last index date (the same for a single day), i.e. "2020.05.31"
+     * @param searchTerms the search terms (usually "*")
+     */
+    public void processApps(@NonNull List<String> apps, @NonNull String fromDate, @NonNull String toDate, String searchTerms) {
+        List<String> days = Utils.getIndexNamesBetween(fromDate, toDate);
+        if (days.isEmpty()) throw new RuntimeException(format("Empty range of dates %s..%s", fromDate, toDate));
+
+        Ranking byApp = RankingMode.EXACT.newRanking(sketchTopK);
+        Ranking bySource = RankingMode.EXACT.newRanking(sketchTopK);
+        long[] totals = new long[2];
+        analyzeDays(apps, days, searchTerms, parallelIndices, (app, byDay) -> {
+            if (byDay.isEmpty()) {
+                System.err.println(format("WARN: there are no indices for %s between %s and %s, skipping the application", app, fromDate, toDate));
+                return;
+            }
+            System.out.println(format("%n===== %s =====%n", app));
+            Path dir = Paths.get(app);
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                // Rethrow as runtime non checked exception.
+                throw new RuntimeException(e);
+            }
+            LogAggregator[] range = mergeDays(byDay);
+            writeReports(dir, range[0], range[1]);
+            if (days.size() > 1) writeTrend(dir, byDay, range[0]);
+
+            // Los totales de todo el indice: con agregaciones los de elastic, con muestreo extrapolados
+            LogAggregator tagRankings = range[1];
+            SampleEstimator sample = SampleEstimator.of(tagRankings);
+            LongUnaryOperator scale = value -> sample == null ? value : sample.scale(value);
+            long lines = scale.applyAsLong(tagRankings.getLineCount());
+            long bytes = scale.applyAsLong(tagRankings.getTotalBytesBeforeReplaces());
+            byApp.add(app, lines, bytes);
+            totals[0] += lines;
+            totals[1] += bytes;
+            tagRankings.getBySource().forEach((source, count, sourceBytes) ->
+                    bySource.add(app + " " + source, scale.applyAsLong(count), scale.applyAsLong(sourceBytes)));
+        });
 
-        // Ranking de mensajes con mayor aparicion
-        Map<String, Long> sortedRankByMessageCount = countMessagesDesc(resultados);
-        writeSortedRankToFile(sortedRankByMessageCount, "ranking_por_message_count.txt", totalLineCount.longValue());
-        //dumpSortedRank(sortedRankByMessageCount,25);
+        System.out.println(format("%n===== %d aplicaciones =====%n", byApp.size()));
+        writeRankings(Paths.get(""), byApp, "app", totals[0], totals[1], null, true);
+        writeRankings(Paths.get(""), bySource, "app_source", totals[0], totals[1], null, true);
+        System.out.println(format("Lines de las aplicaciones: %d", totals[0]));
+        System.out.println(format("Bytes de las aplicaciones: %d", totals[1]));
+    }
+
+    /**
+     * Reads and transforms the daily indices of several applications, up to {@code parallelism} indices at the same
+     * time, so a range takes about as long as its slowest days. Each index is read and aggregated on its own
+     * (MAX_RESULTS, the page cache and the incremental checkpoints are per index).
+     * When sampling, all the days of an application are sampled with the same probability so its sample is uniform
+     * and has about MAX_RESULTS lines in total. Days without index are skipped.
+     * @param apps the names of the applications, the prefixes of their indices
+     * @param days the index dates, in order
+     * @param searchTerms the search terms (usually "*")
+     * @param parallelism max number of indices read at the same time
+     * @param onApp receives each application (in order, as soon as all its days are done) with the aggregate and the
+     *              tag rankings of each day that has index
+     */
+    private void analyzeDays(List<String> apps, List<String> days, String searchTerms, int parallelism,
+                             BiConsumer<String, Map<String, LogAggregator[]>> onApp) {
+        if (incremental && sample) {
+            System.err.println("WARN: incremental runs read all the hits in order, the sample mode is ignored");
+        }
+        boolean sampling = sample && !incremental;
+        if (sampling) checkSampleFetchMode();
+        int seed = sampleSeed != null ? sampleSeed : new Random().nextInt();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(apps.size() * days.size(), parallelism)));
+        try {
+            // Primero se ve en paralelo que indices existen y, con muestreo, cuantos hits tienen, para usar la
+            // misma probabilidad en todos los dias de una aplicacion
+            Map<String, Future<Long>> probes = new LinkedHashMap<>();
+            for (String app : apps) {
+                for (String day : days) {
+                    probes.put(app + "-" + day, pool.submit(() -> !indexExists(app, day) ? null
+                            : sampling ? ElasticCursor.count(client, baseQuery(app, day, searchTerms).build()) : 0L));
+                }
+            }
+            Map<String, Long> populations = new HashMap<>();
+            for (Map.Entry<String, Future<Long>> probe : probes.entrySet()) {
+                Long population = probe.getValue().get();
+                if (population != null) populations.put(probe.getKey(), population);
+            }
+            Map<String, Double> rates = new HashMap<>();
+            for (String app : apps) {
+                long population = days.stream().mapToLong(day -> populations.getOrDefault(app + "-" + day, 0L)).sum();
+                rates.put(app, population > maxResults ? (double) maxResults / population : 1.0);
+            }
+
+            // Un dia sin indice queda sin tarea (null)
+            Map<String, Map<String, Future<LogAggregator[]>>> results = new LinkedHashMap<>();
+            for (String app : apps) {
+                Map<String, Future<LogAggregator[]>> appResults = new LinkedHashMap<>();
+                for (String day : days) {
+                    Long population = populations.get(app + "-" + day);
+                    appResults.put(day, population == null ? null : pool.submit(() -> {
+                        LogAggregator aggregate = incremental
+                                ? getLogsIncrementallyAndTransform(app, day, searchTerms)
+                                : sample
+                                ? sampleFromElastic(app, day, searchTerms, population, rates.get(app), seed)
+                                : getLogsFromElasticAndTransform(app, day, searchTerms);
+                        LogAggregator tagRankings = aggregations ? getTagRankingsFromElastic(app, day, searchTerms) : aggregate;
+                        return new LogAggregator[]{aggregate, tagRankings};
+                    }));
+                }
+                results.put(app, appResults);
+            }
+
+            for (Map.Entry<String, Map<String, Future<LogAggregator[]>>> app : results.entrySet()) {
+                Map<String, LogAggregator[]> byDay = new LinkedHashMap<>();
+                for (Map.Entry<String, Future<LogAggregator[]>> result : app.getValue().entrySet()) {
+                    if (result.getValue() == null) {
+                        System.err.println(format("WARN: there is no index for %s-%s, skipping the day", app.getKey(), result.getKey()));
+                        continue;
+                    }
+                    byDay.put(result.getKey(), result.getValue().get());
+                }
+                onApp.accept(app.getKey(), byDay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Rethrow the failure of the day as runtime non checked exception.
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param byDay the aggregate and the tag rankings of each day
+     * @return the aggregate and the tag rankings (the same aggregator without aggregations) of all the days
+     */
+    private LogAggregator[] mergeDays(Map<String, LogAggregator[]> byDay) {
+        LogAggregator aggregate = newLogAggregator();
+        LogAggregator tagRankings = aggregations ? newLogAggregator() : aggregate;
+        for (LogAggregator[] day : byDay.values()) {
+            aggregate.merge(day[0]);
+            if (aggregations) tagRankings.merge(day[1]);
+        }
+        return new LogAggregator[]{aggregate, tagRankings};
+    }
+
+    /**
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @return whether the index of the date exists
+     */
+    private boolean indexExists(String app, String indexDate) throws IOException {
+        Request request = new Request("HEAD", format("%s/%s-%s", ElasticCursor.PATH_PREFIX, app, indexDate));
+        return client.performRequest(request).getStatusLine().getStatusCode() == 200;
+    }
+
+    /**
+     * Offline version of {@link #process(String, String)}: reads the logs from local files instead of
+     * elasticsearch (see {@link LineFormat}), transforms all messages the same way and
+     * <b>write results to the same .txt files.</b>
+     * @param files the files (NDJSON exports or plain log files)
+     */
+    public void processFiles(List<Path> files) {
+        LogAggregator aggregate = getLogsFromFilesAndTransform(files);
+
+        writeReports(Paths.get(""), aggregate, aggregate);
+    }
 
-        Map<String, Long> weightedRank = weightMessagesBySize(resultados);
-        writeSortedRankToFile(weightedRank, "ranking_por_message_bytes.txt", totalBytesBeforeReplaces);
-        dumpSortedRank(weightedRank,25);
+    /**
+     * Writes the rankings of the aggregate to the .txt files and prints the statistics
+     * @param dir directory of the files
+     * @param aggregate the LogAggregator of the results
+     * @param tagRankings the LogAggregator with the source and scope rankings (and their totals), usually the same one
+     */
+    private void writeReports(Path dir, LogAggregator aggregate, LogAggregator tagRankings) {
 
-        Map<String, Long> sortedRankBySourceCount = countMessagesBySource(resultados);
-        writeSortedRankToFile(sortedRankBySourceCount, "ranking_por_source_count.txt", totalLineCount.longValue());
-        dumpSortedRank(sortedRankBySourceCount, 25);
+        // Totales
+        Long totalBytesBeforeReplaces = aggregate.getTotalBytesBeforeReplaces();
+        Long totalLineCount = aggregate.getLineCount();
 
+        // Con una muestra los rankings se extrapolan a todo el indice
+        SampleEstimator sample = SampleEstimator.of(aggregate);
 
-        Map<String, Long> weightMessagesBySource = weightMessagesBySource(resultados);
-        writeSortedRankToFile(weightMessagesBySource, "ranking_por_source_bytes.txt",totalBytesBeforeReplaces);
-        dumpSortedRank(weightMessagesBySource, 25);
+        // Ranking de mensajes con mayor aparicion
+        writeRankings(dir, aggregate.getByMessage(), "message", totalLineCount, totalBytesBeforeReplaces, sample, false);
 
-        Map<String, Long> sortedRankByScopeCount = countMessagesByScope(resultados);
-        writeSortedRankToFile(sortedRankByScopeCount, "ranking_por_scope_count.txt", totalLineCount.longValue());
-        dumpSortedRank(sortedRankByScopeCount, 25);
+        // Cantidad de mensajes distintos por source y de valores distintos por tag
+        if (cardinalityPrecision > 0) {
+            writeCardinalities(dir, aggregate);
+        }
 
+        // Con agregaciones los totales de source y scope son los de todo el indice, no los de la muestra
+        Long tagLineCount = tagRankings.getLineCount();
+        Long tagBytes = tagRankings.getTotalBytesBeforeReplaces();
+        SampleEstimator tagSample = SampleEstimator.of(tagRankings);
 
-        Map<String, Long> weightMessagesByScope = weightMessagesByScope(resultados);
-        writeSortedRankToFile(weightMessagesByScope, "ranking_por_scope_bytes.txt",totalBytesBeforeReplaces);
-        dumpSortedRank(weightMessagesByScope, 25);
+        writeRankings(dir, tagRankings.getBySource(), "source", tagLineCount, tagBytes, tagSample, true);
+        writeRankings(dir, tagRankings.getByScope(), "scope", tagLineCount, tagBytes, tagSample, true);
 
 
 
-        printStatistics(resultados);
-        //dumpTags(resultados);
+        printStatistics(aggregate);
+        if (sample != null) {
+            System.out.println(format("Muestra uniforme         : %.4f%% de %d lines, rankings extrapolados con intervalos del 95%%",
+                    sample.getFraction() * 100, aggregate.getPopulation()));
+            System.out.println(format("Lines estimadas          : %d", sample.scale(totalLineCount)));
+            System.out.println(format("Bytes estimados          : %d", sample.scale(totalBytesBeforeReplaces)));
+        }
+        if (tagRankings != aggregate) {
+            System.out.println(format("Lines en el indice       : %d", tagLineCount));
+            System.out.println(format("Bytes en el indice       : %d", tagBytes));
+        }
+        //dumpTags(aggregate);
 
 
 
@@ -171,355 +647,723 @@ public class LogProcessorService {
 
     /**
      * Given an index date and search term, obtain all matching logs from elasticsearch as per the
-     * instance configured in the class constructor, using pagination, and transform the log entries
-     * by consecutive transform methods to allow further reduction and grouping.
+     * instance configured in the class constructor, paging with a cursor (see {@link FetchMode}),
+     * and transform the log entries by consecutive transform methods to allow further reduction and grouping.
+     * Pages are fetched ahead while previous ones are being transformed (see {@link PagePipeline}), one fetcher
+     * per slice when the search is sliced (see {@link #setSlices(int)}), and each
+     * hit is aggregated as soon as it is transformed and then dropped, so memory depends on the
+     * number of distinct messages and not on the number of results.
+     * @param app name of the application, the prefix of its indices
      * @param indexDate the date as String such as "2020.05.30"
      * @param searchTerms the search terms (usually "*")
-     * @return a List of JsonNode with message transformed
-     */
-    List<JsonNode> getLogsFromElasticAndTransform(@NonNull String indexDate, String searchTerms) {
-        List<JsonNode> results = new ArrayList<>();
-        int page = 1;
-        long offset = 0L;
-        Long count = getResultCount(indexDate, searchTerms);
-        int realPages = BigDecimal.valueOf(count / pageSize).setScale(0, RoundingMode.HALF_UP).intValue();
-
-        System.out.println(format("Search term \"%s\" for application %s and date %s produced %,d total results in %d pages of size %d",
-                searchTerms, APPNAME, indexDate, count, realPages, pageSize));
-
-        int maxResults= this.maxResults;
-        int pages = maxResults / pageSize;
-
-        while (page <= pages) {
-
-            final int currentPage = page; // for lambda
-            List<JsonNode> intermediateResults = getPaginatedResultsAsStream(indexDate, offset, pageSize, searchTerms)
-                    .map(x -> {
-                        JsonNode source = x.get("_source");
-                        // Measure how much bytes the original message spans and store in a new property
-                        source = addSizeOfMessage(source);
-                        // Apply all regular expressions from expressions.txt
-                        source = applyRegularExpressions(source);
-                        // Replace all these tags in place with their tag names to further association and matching
-                        source = replaceTags(source, Tags.DISMISS, true);
-                        // Replace all these tags in place with a combination of tag name and generic number
-                        source = replaceTags(source, Tags.UNDIFERENTIATE, false);
-                        // Replace the rest of numbers with generic numbers (i.e 9999999)
-                        source = generifyNumbers(source, 2);
-                        // Dump the message line after replacement
-                        System.out.println(format("Page %d replaced: %s)", currentPage, getMessageFromNode(source)));
-                        return source;
-                    })
-                    .collect(toList());
-            results.addAll(intermediateResults);
-            offset += pageSize;
-            page++;
+     * @return a LogAggregator with the rankings and totals of all transformed messages
+     */
+    LogAggregator getLogsFromElasticAndTransform(@NonNull String app, @NonNull String indexDate, String searchTerms) {
+        // El indice de hoy todavia esta creciendo, solo los dias pasados son inmutables y se pueden cachear
+        // (los nombres yyyy.MM.dd se ordenan como las fechas)
+        boolean cacheable = pageCache != null && indexDate.compareTo(Utils.getTodayIndexName()) < 0;
+        if (cacheable) {
+            if (refreshCache) {
+                pageCache.invalidate(app, indexDate, searchTerms);
+            } else {
+                PageCache.Entry entry = pageCache.lookup(app, indexDate, searchTerms, maxResults);
+                if (entry != null) return replayFromCache(entry, app, indexDate, searchTerms);
+            }
         }
-        return results;
-    }
 
+        LogAggregator results = newLogAggregator();
+        results.setGroupTags(!aggregations);
+        List<SearchCursor> cursors = new ArrayList<>();
+        PageCache.Writer recorder = null;
+
+        try {
+            openCursors(baseQuery(app, indexDate, searchTerms), cursors);
+            if (cacheable) recorder = pageCache.writer(app, indexDate, searchTerms);
+
+            // La primera pagina de cada slice trae su total, no hace falta un request aparte para contar
+            AtomicLong remaining = new AtomicLong(maxResults);
+            List<LimitedPageSource> sources = new ArrayList<>(cursors.size());
+            long count = 0L;
+            for (SearchCursor cursor : cursors) {
+                SearchPage page = cursor.next();
+                count += Math.max(page.getTotal(), 0L);
+                sources.add(new LimitedPageSource(new CursorPageSource(cursor, page), remaining, recorder));
+            }
+            long wanted = Math.min(count, maxResults);
+            long pages = (wanted + pageSize - 1) / pageSize;
+
+            System.out.println(format("Search term \"%s\" for application %s and date %s produced %,d total results, reading %,d in %d pages of size %d (%d slices)",
+                    searchTerms, app, indexDate, count, wanted, pages, pageSize, cursors.size()));
 
+            results.merge(runPipeline(format("%s %s", app, indexDate), sources, results));
+            if (recorder != null) recorder.commit(count);
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        } finally {
+            if (recorder != null) recorder.abort();
+            cursors.forEach(SearchCursor::close);
+        }
+        return results;
+    }
 
     /**
-     * Builds up a RestHighLevelClient for connecting to elasticsearch <b>host defined in config</b>
-     * and set timeout settings for client.
-     * This is a low-level method not intended for direct use.
-     * @return an instance of the high level official elastic search client
+     * Sampling version of {@link #getLogsFromElasticAndTransform(String, String, String)}: instead of the first MAX_RESULTS
+     * hits (all of them from the same time window) reads a uniform random sample of about MAX_RESULTS hits of the
+     * whole index, each hit sampled independently with probability MAX_RESULTS / total by elasticsearch itself
+     * (random_score, see {@link ElasticCursor#queryNode(SearchQuery)}), with fetch mode PIT or SCROLL and any number of slices.
+     * OFFSET is rejected: its URI searches can not carry the random_score query.
+     * The aggregate keeps the total so the reports extrapolate the rankings to the whole index (see {@link SampleEstimator}).
+     * The sample is not limited to MAX_RESULTS (cutting it would keep the first hits again) and is not cached.
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @return a LogAggregator with the rankings and totals of the sample and the number of documents it was drawn from
      */
-    private RestHighLevelClient getHighLevelClient() {
-        return new RestHighLevelClient(
-                RestClient.builder(
-                        // Regular elasticsearchs listens on port 9201 but our infra people had hidden it behind
-                        // some proxy which filters out most operations and params  ¯\_(ツ)_/¯
-                        new HttpHost(HOSTNAME, 80, "http")
-                )
-                        .setRequestConfigCallback(
-                                requestConfigBuilder -> requestConfigBuilder
-                                        .setConnectTimeout(5000)
-                                        .setSocketTimeout(99999)));
+    LogAggregator getSampleFromElasticAndTransform(@NonNull String app, @NonNull String indexDate, String searchTerms) {
+        checkSampleFetchMode();
+        try {
+            long population = ElasticCursor.count(client, baseQuery(app, indexDate, searchTerms).build());
+            double rate = population > maxResults ? (double) maxResults / population : 1.0;
+            return sampleFromElastic(app, indexDate, searchTerms, population, rate, sampleSeed != null ? sampleSeed : new Random().nextInt());
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
     }
 
-
     /**
-     * Connects to elasticsearch through low-level client and perform some search on given index.
-     * The name of the app (APPNAME) is taken from properties read inside the constructor of the class.
-     * This is a low-level method not intended for direct use.
-     * @param indexDate the date of the index as String i.e. 2020.05.30
-     * @param searchParameter a search term (usually "*")
-     * @return an org.elasticsearch.Response which holds a representation of the JSON returned by elastic
-     * @throws IOException
+     * Fails if the fetch mode can not sample: OFFSET pages with URI searches, without the random_score query,
+     * so it would read the first hits (up to index.max_result_window) and call them a sample
      */
-    private Response performSearch(@NonNull String indexDate, String searchParameter) throws IOException {
-
-        Response response = null;
-        // Esto es un try-with-resources.
-        try (RestHighLevelClient client = getHighLevelClient()){
-
-            RestClient lowLevelClient = client.getLowLevelClient();
+    private void checkSampleFetchMode() {
+        if (fetchMode == FetchMode.OFFSET) {
+            throw new RuntimeException("Sample mode needs the random_score query of a search body, use fetch mode PIT or SCROLL");
+        }
+    }
 
-            final String endpoint = format("/elasticsearch/%s-%s/_search?%s",
-                    APPNAME,
-                    indexDate,
-                    searchParameter);
+    /**
+     * Reads and transforms a uniform random sample of the hits, see {@link #getSampleFromElasticAndTransform(String, String, String)}
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @param population total hits of the search
+     * @param rate probability of each hit to be sampled
+     * @param seed seed of the sample
+     * @return a LogAggregator with the rankings and totals of the sample and the number of documents it was drawn from
+     */
+    private LogAggregator sampleFromElastic(String app, String indexDate, String searchTerms, long population, double rate, int seed) {
+        LogAggregator results = newLogAggregator();
+        results.setGroupTags(!aggregations);
+        List<SearchCursor> cursors = new ArrayList<>();
+        try {
+            openCursors(baseQuery(app, indexDate, searchTerms).sampleRate(rate).sampleSeed(seed), cursors);
+            List<CursorPageSource> sources = new ArrayList<>(cursors.size());
+            long count = 0L;
+            for (SearchCursor cursor : cursors) {
+                SearchPage page = cursor.next();
+                count += Math.max(page.getTotal(), 0L);
+                sources.add(new CursorPageSource(cursor, page));
+            }
 
-            response = lowLevelClient.performRequest(new Request("GET", endpoint));
+            System.out.println(format("Search term \"%s\" for application %s and date %s produced %,d total results, sampling %,d (%.4f%% with seed %d) in pages of size %d (%d slices)",
+                    searchTerms, app, indexDate, population, count, rate * 100, seed, pageSize, cursors.size()));
 
-            // This is important to avoid leaking connections
-            client.getLowLevelClient().close();
+            results.merge(runPipeline(format("%s %s", app, indexDate), sources, results));
+            if (rate < 1.0) results.setPopulation(population);
         } catch (IOException e) {
             // Rethrow as runtime non checked exception.
             throw new RuntimeException(e);
+        } finally {
+            cursors.forEach(SearchCursor::close);
         }
-
-        return response;
+        return results;
     }
 
-
     /**
-     * Perform a search against the given date of the configured app in elastic and return the count
-     * This is a low-level method not intended for direct use. Is mainly used for proper pagination.
-     * @param indexDate the date of the index as String i.e. 2020.05.30
-     * @param searchTerms a search term (usually "*")
-     * @return a Long holding the count of total results
+     * Incremental version of {@link #getLogsFromElasticAndTransform(String, String, String)}: resumes from the checkpoint
+     * of the previous run of the same query (see {@link CheckpointStore}) and only downloads the hits after it,
+     * in sort field order and up to INCREMENTAL_LAG_SECONDS ago, merging them into the saved aggregate.
+     * The checkpoint is saved every CHECKPOINT_PAGES pages, so an interrupted run loses at most those pages.
+     * MAX_RESULTS limits the hits of each run, the next run continues where this one stopped.
+     * Reads a single slice (hits must be checkpointed in order) and does not use the page cache.
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @return a LogAggregator with the rankings and totals of all the runs
      */
-    private Long getResultCount(@NonNull String indexDate, String searchTerms) {
+    LogAggregator getLogsIncrementallyAndTransform(@NonNull String app, @NonNull String indexDate, String searchTerms) {
+        if (fetchMode == FetchMode.OFFSET) {
+            throw new RuntimeException(format("Incremental mode needs hits sorted by %s, use fetch mode PIT or SCROLL", sortField));
+        }
+        SearchCursor cursor = null;
+        try {
+            if (resetCheckpoint) checkpointStore.delete(app, indexDate, searchTerms);
+            // Expresiones y rankings de esta ejecucion: un checkpoint de otras no se suma, se empieza de cero
+            String settings = checkpointSettings();
+            CheckpointStore.Checkpoint saved = checkpointStore.load(app, indexDate, searchTerms, newLogAggregator(), settings);
+            CheckpointStore.Checkpoint checkpoint = saved != null ? saved : new CheckpointStore.Checkpoint(newLogAggregator(), settings);
+            checkpoint.getAggregate().setGroupTags(!aggregations);
+            Long from = checkpoint.getLastSortValue();
+            Set<String> seen = new HashSet<>(checkpoint.getBoundaryIds());
+
+            SearchQuery query = baseQuery(app, indexDate, searchTerms)
+                    .rangeFrom(from)
+                    .rangeTo(System.currentTimeMillis() - incrementalLagMillis)
+                    .ordered(true)
+                    .build();
+            cursor = openCursor(query);
+            SearchPage page = cursor.next();
+            long count = Math.max(page.getTotal(), 0L);
+
+            System.out.println(format("Search term \"%s\" for application %s and date %s produced %,d results after the checkpoint (%,d hits in %,d pages), reading up to %,d",
+                    searchTerms, app, indexDate, count, checkpoint.getHits(), checkpoint.getPages(), Math.min(count, maxResults)));
+
+            // Los hits del borde del checkpoint vuelven a venir (el rango es inclusivo), se descartan
+            PagePipeline.PageSource source = new LimitedPageSource(
+                    new UnseenPageSource(new CursorPageSource(cursor, page), from, seen), new AtomicLong(maxResults), null);
+
+            runPipelineOrdered(format("%s %s", app, indexDate), source, checkpoint.getAggregate(), (pageNumber, hits, pageAggregate) -> {
+                checkpoint.add(hits, pageAggregate);
+                if (pageNumber % checkpointPages == 0) checkpointStore.save(app, indexDate, searchTerms, checkpoint);
+            });
+            checkpointStore.save(app, indexDate, searchTerms, checkpoint);
 
-        JsonNode jsonNode = getPaginatedResults(indexDate, 0L, 1, searchTerms);
-        Long total = jsonNode.path("total").asLong();
-        return total;
+            System.out.println(format("Checkpoint saved: %,d hits in %,d pages", checkpoint.getHits(), checkpoint.getPages()));
+            if (count > maxResults) {
+                System.out.println(format("MAX_RESULTS reached, about %,d hits left for the next run", count - maxResults));
+            }
+            return checkpoint.getAggregate();
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
     }
 
+    /**
+     * Ranks all the documents of a search by source and scope with elasticsearch aggregations
+     * (see {@link TagAggregation}), without downloading them
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @return a LogAggregator with only the source and scope rankings and the totals of all the documents
+     */
+    LogAggregator getTagRankingsFromElastic(@NonNull String app, @NonNull String indexDate, String searchTerms) {
+        try {
+            LogAggregator rankings = tagAggregation.aggregate(baseQuery(app, indexDate, searchTerms).build());
+            System.out.println(format("Search term \"%s\" for application %s and date %s aggregated %,d documents in %d sources and %d scopes",
+                    searchTerms, app, indexDate, rankings.getLineCount(), rankings.getBySource().size(), rankings.getByScope().size()));
+            return rankings;
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+    }
 
     /**
-     * Given an index date, a search term and pagination parameters perform a paginated search and
-     * return just the "hits" node of the original result object.
-     * This is a low-level method not intended for direct use.
-     * @param indexDate the date of the index as String i.e. 2020.05.30
-     * @param from the initial offset por pagination, in number of entries
-     * @param size the size of the page in number of entries
-     * @param searchTerms a search term (usually "*")
-     * @return a Json object containing the results from elasticsearch
+     * Transforms the hits of a query saved in the page cache by a previous run, instead of downloading them again
+     * @param entry the cache entry of the query
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms
+     * @return a LogAggregator with the rankings and totals of all transformed messages
      */
-    private JsonNode getPaginatedResults(@NonNull String indexDate, @NonNull Long from, @NonNull Integer size, String searchTerms) {
+    private LogAggregator replayFromCache(PageCache.Entry entry, String app, String indexDate, String searchTerms) {
+        LogAggregator results = newLogAggregator();
+        results.setGroupTags(!aggregations);
+        long wanted = Math.min(entry.getHits(), maxResults);
+        System.out.println(format("Search term \"%s\" for application %s and date %s produced %,d total results, replaying %,d from cache %s",
+                searchTerms, app, indexDate, entry.getTotal(), wanted, entry.getData()));
+        try {
+            Queue<LocalFileSource.Chunk> chunks = LocalFileSource.split(
+                    Collections.singletonList(entry.getData()), localChunkBytes, file -> responseReader::readDocument);
+            int readers = Math.max(1, Math.min(chunks.size(), Runtime.getRuntime().availableProcessors()));
+
+            AtomicLong remaining = new AtomicLong(wanted);
+            LongAdder invalidLines = new LongAdder();
+            List<LimitedPageSource> sources = new ArrayList<>(readers);
+            for (int i = 0; i < readers; i++) {
+                sources.add(new LimitedPageSource(new LocalFileSource(chunks, pageSize, invalidLines), remaining, null));
+            }
+            results.merge(runPipeline(format("%s %s", app, indexDate), sources, results));
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
 
+    /**
+     * Reads all the lines of local files and transforms them like {@link #getLogsFromElasticAndTransform(String, String, String)}.
+     * Files are memory mapped and split in chunks (LOCAL_CHUNK_MB) read and parsed by several threads.
+     * @param files the files (NDJSON exports or plain log files)
+     * @return a LogAggregator with the rankings and totals of all transformed messages
+     */
+    LogAggregator getLogsFromFilesAndTransform(List<Path> files) {
+        LogAggregator results = newLogAggregator();
         try {
-            String fullSearchPredicate = format("from=%d&size=%d&q=%s", from, size, searchTerms);
-            Response response = performSearch(indexDate, fullSearchPredicate);
-            String rawBody = EntityUtils.toString(response.getEntity());
-            JsonNode jsonNode = mapper.readTree(rawBody);
-            return jsonNode.path("hits");
+            Queue<LocalFileSource.Chunk> chunks = LocalFileSource.split(files, localChunkBytes, this::lineParserFor);
+            int readers = Math.max(1, Math.min(chunks.size(), Runtime.getRuntime().availableProcessors()));
+
+            System.out.println(format("Reading %d files in %d chunks with %d readers", files.size(), chunks.size(), readers));
+
+            LongAdder invalidLines = new LongAdder();
+            List<LocalFileSource> sources = new ArrayList<>(readers);
+            for (int i = 0; i < readers; i++) {
+                sources.add(new LocalFileSource(chunks, pageSize, invalidLines));
+            }
+            results.merge(runPipeline("Local files", sources, results));
+
+            if (invalidLines.sum() > 0) {
+                System.err.println(format("WARN: %,d lines could not be parsed and were skipped", invalidLines.sum()));
+            }
         } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
             throw new RuntimeException(e);
         }
+        return results;
     }
 
+    /**
+     * Fetches and transforms all the pages of the sources with a {@link PagePipeline}
+     * @param label what is read, i.e. the application and date, printed with the counters of the pipeline
+     * @param sources where pages come from (cursors, slices or chunks of files)
+     * @param like aggregator whose settings are copied
+     * @return a LogAggregator with all the transformed hits
+     */
+    private LogAggregator runPipeline(String label, List<? extends PagePipeline.PageSource> sources, LogAggregator like) {
+        PagePipeline pipeline = new PagePipeline(prefetchPages, transformPool());
+        try {
+            return pipeline.run(sources, () -> newAggregator(like), this::transformAndAggregate);
+        } finally {
+            reportPipeline(label, pipeline.getStats());
+        }
+    }
 
     /**
-     * This is a wrapper method for {@link #getPaginatedResults(String, Long, Integer, String)} that
-     * produces a Stream by invoking spliterator on JsonNode.
-     * <b>Please notice that it returns the "hits.hits" node of the original results node.</b>
-     * This is an internal method not intended for direct use.
-     * @param indexDate the date of the index as String i.e. 2020.05.30
-     * @param from the initial offset por pagination, in number of entries
-     * @param size the size of the page in number of entries
-     * @param searchTerms a search term (usually "*")
-     * @return a Stream of JsonNode for using with java 8 streams.
+     * Fetches and transforms all the pages of a source with a {@link PagePipeline}, handing each page in order
+     * to the sink with the aggregate of its hits
+     * @param label what is read, i.e. the application and date, printed with the counters of the pipeline
+     * @param source where pages come from, in order
+     * @param like aggregator whose settings are copied
+     * @param sink receives each page and its aggregate
      */
-    private Stream<JsonNode> getPaginatedResultsAsStream(@NonNull String indexDate, @NonNull Long from, @NonNull Integer size, String searchTerms) {
-        return StreamSupport
-                .stream(getPaginatedResults(indexDate, from, size, searchTerms)
-                        .path("hits")
-                        .spliterator(), true);
+    private void runPipelineOrdered(String label, PagePipeline.PageSource source, LogAggregator like, PagePipeline.PageSink sink) {
+        PagePipeline pipeline = new PagePipeline(prefetchPages, transformPool());
+        try {
+            pipeline.runOrdered(source, () -> newAggregator(like), this::transformAndAggregate, sink);
+        } finally {
+            reportPipeline(label, pipeline.getStats());
+        }
     }
 
+    /**
+     * Prints the counters of a pipeline in a single call, so the reports of the pipelines of several days or
+     * applications running at the same time do not mix their lines
+     * @param label what was read
+     * @param stats the counters of its pipeline, null if it did not start
+     */
+    private static void reportPipeline(String label, PipelineStats stats) {
+        if (stats == null) return;
+        System.out.println(label + " " + String.join(System.lineSeparator(), stats.report()));
+    }
 
     /**
-     * Given a JsonNode, pretty print it to String using Jackson's ObjectMapper
-     * @param node a valid JsonNode object
-     * @return a String containing a pretty printed version of the JsonNode
+     * @return the transform pool, created on first use with {@link #transformWorkers} threads
      */
-    public String toPrettyString(JsonNode node) {
-        try {
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(node);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
+    private synchronized ForkJoinPool transformPool() {
+        if (transformPool == null) transformPool = PagePipeline.newTransformPool(transformWorkers);
+        return transformPool;
+    }
+
+    private void transformAndAggregate(LogAggregator aggregator, int pageNumber, LogHit hit) {
+        // Las mismas expresiones para transformar y para la cache, aunque se recargue expressions.txt en el medio
+        ExpressionSet expressions = replacementsService.getExpressions();
+        String message;
+        long fingerprint;
+        if (transformCache != null) {
+            // La cache devuelve el fingerprint calculado la primera vez y siempre la misma instancia del mensaje
+            TransformCache.Template template = transformCache.get(hit, expressions, h -> transform(h, expressions));
+            message = template.getTemplate();
+            fingerprint = template.getFingerprint();
+        } else {
+            message = transform(hit, expressions);
+            fingerprint = Utils.hash64(message);
+        }
+        if (printMessages) {
+            // Dump the message line after replacement
+            System.out.println(format("Page %d replaced: %s)", pageNumber, message));
         }
+        aggregator.accept(hit, message, fingerprint);
     }
 
+    /**
+     * @param file a local file
+     * @return the parser for the lines of the file as per the configured {@link LineFormat}
+     */
+    private LineParser lineParserFor(Path file) {
+        LineFormat format = localFormat;
+        if (format == LineFormat.AUTO) {
+            String name = Compression.baseName(file).toLowerCase();
+            format = name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson")
+                    ? LineFormat.NDJSON
+                    : LineFormat.RAW;
+        }
+        return format == LineFormat.NDJSON ? responseReader::readDocument : localLineParser;
+    }
 
     /**
-     * Given a Json _source node (elasticsearch format) apply all regular expressions using
-     * ReplacementService which reads regexs from expressions.txt file
-     * This is an internal method not intended for public use.
-     * @param sourceNode a JsonNode with _source structure from elasticsearch.
-     * @return a modified JsonNode with message node altered by all these rules.
+     * Pages of a cursor, starting with one already fetched
      */
-    private JsonNode applyRegularExpressions(JsonNode sourceNode) {
+    private static class CursorPageSource implements PagePipeline.PageSource {
+        private final SearchCursor cursor;
+        private SearchPage pending;
 
-        String message = sourceNode.get("message").asText();
-        String alteredMessage = replacementsService.applyAllReplacements(message);
+        CursorPageSource(SearchCursor cursor, SearchPage first) {
+            this.cursor = cursor;
+            this.pending = first;
+        }
 
-        ObjectNode mutableNode = (ObjectNode) sourceNode;
-        mutableNode.put("message", alteredMessage);
-        return sourceNode;
+        @Override
+        public List<LogHit> next() throws IOException {
+            SearchPage page = pending != null ? pending : cursor.next();
+            pending = null;
+            return page.getHits();
+        }
     }
 
     /**
-     * Given a Json _source node (elasticsearch format) adds a "bytes" node containing the size
-     * of the "message" node in bytes
-     * This is an internal method not intended for public use.
-     * @param sourceNode
-     * @return modified Json _source node
+     * Pages of another source while there are hits left of a max number of hits shared by all the sources
+     * (slices or readers), optionally recording them in the page cache
      */
-    public JsonNode addSizeOfMessage(JsonNode sourceNode) {
+    private static class LimitedPageSource implements PagePipeline.PageSource {
+        private final PagePipeline.PageSource source;
+        private final AtomicLong remaining;
+        private final PageCache.Writer recorder;
+
+        LimitedPageSource(PagePipeline.PageSource source, AtomicLong remaining, PageCache.Writer recorder) {
+            this.source = source;
+            this.remaining = remaining;
+            this.recorder = recorder;
+        }
 
-        String message = sourceNode.get("message").asText();
-        int len = message.getBytes().length;
-        ObjectNode mutableNode = (ObjectNode) sourceNode;
-        mutableNode.put("bytes", len);
-        return sourceNode;
+        @Override
+        public List<LogHit> next() throws IOException {
+            if (remaining.get() <= 0) return Collections.emptyList();
+            List<LogHit> hits = source.next();
+            if (hits == null || hits.isEmpty()) return Collections.emptyList();
+
+            // Reserva los hits de esta pagina del cupo compartido entre slices
+            long left = remaining.getAndAdd(-hits.size());
+            if (left <= 0) return Collections.emptyList();
+            if (hits.size() > left) {
+                hits = hits.subList(0, (int) left);
+            }
+            if (recorder != null) recorder.append(hits);
+            return hits;
+        }
     }
 
+    /**
+     * Pages of another source without the hits already analyzed by the previous incremental run, that is
+     * the ones with the sort value of its checkpoint and one of its boundary ids
+     */
+    private static class UnseenPageSource implements PagePipeline.PageSource {
+        private final PagePipeline.PageSource source;
+        private final Long lastSortValue;
+        private final Set<String> boundaryIds;
+
+        UnseenPageSource(PagePipeline.PageSource source, Long lastSortValue, Set<String> boundaryIds) {
+            this.source = source;
+            this.lastSortValue = lastSortValue;
+            this.boundaryIds = boundaryIds;
+        }
+
+        @Override
+        public List<LogHit> next() throws IOException {
+            while (true) {
+                List<LogHit> hits = source.next();
+                if (hits == null || hits.isEmpty() || lastSortValue == null) return hits;
+
+                List<LogHit> unseen = new ArrayList<>(hits.size());
+                for (LogHit hit : hits) {
+                    if (CheckpointStore.sortValue(hit) != lastSortValue || !boundaryIds.contains(hit.getId())) unseen.add(hit);
+                }
+                // Una pagina vacia terminaria la lectura, si todos ya se vieron se pide la siguiente
+                if (!unseen.isEmpty()) return unseen;
+            }
+        }
+    }
 
     /**
-     * Extracts the message node from a _source node in elasticsearch Json response structure
-     * Internal method not intended for public use.
-     * @param sourceNode
-     * @return the String from the message node.
+     * Opens one cursor per slice over the results of a search as per the configured {@link FetchMode}.
+     * When point in time is not available falls back to scroll.
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @param cursors list where the open cursors are added, to be closed by the caller (even on failure)
+     * @throws IOException on communication errors with elasticsearch
      */
-    private String getMessageFromNode(JsonNode sourceNode) {
-        return sourceNode.get("message").asText();
+    private void openCursors(SearchQuery.SearchQueryBuilder base, List<SearchCursor> cursors) throws IOException {
+        int sliceMax = Math.max(slices, 1);
+        if (sliceMax > 1 && fetchMode == FetchMode.OFFSET) {
+            System.err.println(format("WARN: fetch mode %s can not be sliced, reading %d slices as 1", fetchMode, sliceMax));
+            sliceMax = 1;
+        }
+
+        SearchQuery query = base
+                .sliceId(0)
+                .sliceMax(sliceMax)
+                .build();
+
+        SearchCursor first = openCursor(query);
+        cursors.add(first);
+        for (int sliceId = 1; sliceId < sliceMax; sliceId++) {
+            SearchQuery slice = query.toBuilder().sliceId(sliceId).build();
+            cursors.add(first instanceof PointInTimeCursor
+                    ? new PointInTimeCursor((PointInTimeCursor) first, slice)
+                    : new ScrollCursor(client, slice, responseReader));
+        }
     }
 
+    /**
+     * @param app name of the application, the prefix of its indices
+     * @param indexDate the date as String such as "2020.05.30"
+     * @param searchTerms the search terms (usually "*")
+     * @return a SearchQuery builder for the index and terms with the configured page size, sort, keep alive and fields
+     */
+    private SearchQuery.SearchQueryBuilder baseQuery(String app, String indexDate, String searchTerms) {
+        return SearchQuery.builder()
+                .index(format("%s-%s", app, indexDate))
+                .terms(searchTerms)
+                .pageSize(pageSize)
+                .sortField(sortField)
+                .keepAlive(cursorKeepAlive)
+                .sourceFields(projectFields ? sourceFields() : null);
+    }
 
     /**
-     * Given a _source node from elasticsearch structure replace all numbers in message
-     * with generic digits
-     * @param sourceNode a JsonNode containing the _source structure
-     * @param minDigits minimun number of digits for replacement. Avoids replacing single digits
-     * @return A modified source structure with message node mutated.
-     */
-    private JsonNode generifyNumbers(JsonNode sourceNode, int minDigits) {
-        String message = sourceNode.get("message").asText();
-        String modifiedMessage = Utils.generalizeNumbersInMessage(message, 2);
-
-        ObjectNode mutableNode = (ObjectNode) sourceNode;
-        mutableNode.put("message", modifiedMessage);
-        return sourceNode;
-    }
-
-    /**
-     * Given a <i>_source node</i> from elasticsearch structure, search values of given tags[]
-     * inside the <i>tags</i> node and replace these values inside the <i>message</i> node
-     * with either:
-     *  - A generic [tag:TAGNAME]
-     *  - A generic [tag:value] whose numbers have been converted to 9's
-     * @param sourceNode a JsonNode containing the _source structure
-     * @param tags an array of tag names
-     * @param removeValue either to replace with tagname (true) or generic numbers (false)
-     * @return a modified source structure with message node mutated.
-     */
-    private JsonNode replaceTags(JsonNode sourceNode, String[] tags, boolean removeValue) {
-
-        // Obtengo el mensaje original
-        String message = sourceNode.get("message").asText();
-        ObjectNode mutableNode = (ObjectNode) sourceNode;
-
-        // Tratamiento de tags
-        for (String tag : tags) {
-            JsonNode tagNode = sourceNode.get("tags").get(tag);
-            if (tagNode != null) {
-                // Si el tag esta en ._source.tags, elimino el texto del .message
-                String tagValue = tagNode.asText();
-                if (tagValue != null && !tagValue.isEmpty()) {
-                    // La regex contempla espacios en blanco opcionales
-                    Pattern p = Pattern.compile("\\[ ?" + tag + " ?: ?" + tagValue + " ?\\]");
-                    Matcher m = p.matcher(message);
-                    // Reemplazo el valor del TAG por su NOMBRE
-                    if (removeValue) {
-                        message = m.replaceFirst(format("[%s:%s]", tag, tag.toUpperCase()));
-                    } else if (Utils.isNumeric(tagValue)) {
-                        String replacedNumber = Utils.generalizeNumber(tagValue);
-                        message = m.replaceFirst(format("[%s:%s]", tag, replacedNumber));
-                    } else {
-                        String replacedWord = Utils.generalize(tagValue);
-                        message = m.replaceFirst(format("[%s:%s]", tag, replacedWord));
-                    }
+     * @return the fields of _source the analysis reads: the message, the tags replaced inside it
+     * ({@link Tags#DISMISS} and {@link Tags#UNDIFERENTIATE}) and the tags the rankings group by
+     */
+    private List<String> sourceFields() {
+        Set<String> fields = new LinkedHashSet<>();
+        fields.add("message");
+        for (String tag : tagSubstituter.getTagNames()) {
+            fields.add("tags." + tag);
+        }
+        // Aun con agregaciones, asi los hits de la cache sirven para cualquier modo
+        fields.add("tags.source");
+        fields.add("tags.scope");
+        return new ArrayList<>(fields);
+    }
 
+    /**
+     * Opens a cursor over the results of a query as per the configured {@link FetchMode}.
+     * When point in time is not available falls back to scroll.
+     * @param query the query (or its first slice)
+     * @return an open SearchCursor, to be closed by the caller
+     * @throws IOException on communication errors with elasticsearch
+     */
+    private SearchCursor openCursor(SearchQuery query) throws IOException {
+        switch (fetchMode) {
+            case OFFSET:
+                return new OffsetCursor(client, query, responseReader);
+            case SCROLL:
+                return new ScrollCursor(client, query, responseReader);
+            default:
+                try {
+                    return new PointInTimeCursor(client, query, responseReader);
+                } catch (ResponseException e) {
+                    System.err.println(format("WARN: point in time not available (%s), using scroll",
+                            e.getResponse().getStatusLine()));
+                    return new ScrollCursor(client, query, responseReader);
                 }
-            }
         }
-        mutableNode.put("message", message);
-        return sourceNode;
     }
 
+    /**
+     * Applies all the transformations, in order, to the message of a hit to obtain a generic message
+     * that can be grouped with similar ones
+     * @param hit a hit obtained from elasticsearch
+     * @param expressions the current expressions of expressions.txt
+     * @return the transformed message
+     */
+    private String transform(LogHit hit, ExpressionSet expressions) {
+        // Apply all regular expressions from expressions.txt
+        String message = applyRegularExpressions(hit.getMessage(), expressions);
+        // Replace tags in place with their tag names (Tags.DISMISS) or generic values (Tags.UNDIFERENTIATE)
+        message = replaceTags(message, hit);
+        // Replace the rest of numbers with generic numbers (i.e 9999999)
+        message = generifyNumbers(message, 2);
+        return message;
+    }
+
+    private LogAggregator newAggregator(LogAggregator like) {
+        return like.emptyCopy();
+    }
+
+    /**
+     * @return an empty LogAggregator with the configured kind of rankings (see RankingMode)
+     */
+    private LogAggregator newLogAggregator() {
+        LogAggregator aggregator = new LogAggregator(
+                () -> messageRanking.newRanking(sketchTopK, templates),
+                () -> sourceRanking.newRanking(sketchTopK),
+                () -> scopeRanking.newRanking(sketchTopK));
+        aggregator.setCardinalityPrecision(cardinalityPrecision);
+        return aggregator;
+    }
 
     /**
-     * Given a set of results obtained from elasticsearch, get all tags inside the _source nodes
-     * and sample one value for each one. Then print the list to stdout.
-     * @param resultados a List of JsonNode containing the results from elasticsearch
+     * @return the expressions and ranking settings the aggregates of this run are produced with (see CheckpointStore)
      */
-    private void dumpTags(List<JsonNode> resultados) {
+    private String checkpointSettings() {
+        String settings = format("expressions=%s rankings=%s,%s,%s", replacementsService.getExpressions().getDigest(),
+                messageRanking, sourceRanking, scopeRanking);
+        // SKETCH_TOP_K solo cambia los rankings SKETCH
+        boolean sketches = messageRanking == RankingMode.SKETCH || sourceRanking == RankingMode.SKETCH || scopeRanking == RankingMode.SKETCH;
+        return sketches ? settings + " top_k=" + sketchTopK : settings;
+    }
 
-        System.out.println("Tags sampleados:\n");
-        Map<String, String> sampledTags = new HashMap<>();
 
-        for (JsonNode resultado : resultados) {
-            Map<String, String> tags = mapper.convertValue(resultado.path("tags"), new TypeReference<Map<String, String>>() {
-            });
-            tags.entrySet().forEach(e -> {
-                if (!sampledTags.containsKey(e.getKey())) {
-                    sampledTags.put(e.getKey(), e.getValue());
-                }
-            });
+
+    /**
+     * Builds up the RestClient for connecting to elasticsearch <b>host defined in config</b>
+     * with a pool of reusable connections and the timeout settings for the client.
+     * This is a low-level method not intended for direct use.
+     * @param maxConnections size of the connection pool
+     * @param keepAliveMillis how long an idle connection is kept in the pool
+     * @param connectTimeoutMillis timeout for establishing a connection
+     * @param socketTimeoutMillis timeout waiting for data
+     * @return an instance of the low level official elastic search client
+     */
+    private RestClient buildClient(int maxConnections, long keepAliveMillis, int connectTimeoutMillis, int socketTimeoutMillis) {
+        return RestClient.builder(
+                        // Regular elasticsearchs listens on port 9201 but our infra people had hidden it behind
+                        // some proxy which filters out most operations and params  ¯\_(ツ)_/¯
+                        new HttpHost(HOSTNAME, 80, "http")
+                )
+                .setRequestConfigCallback(
+                        requestConfigBuilder -> requestConfigBuilder
+                                .setConnectTimeout(connectTimeoutMillis)
+                                .setSocketTimeout(socketTimeoutMillis))
+                .setHttpClientConfigCallback(
+                        httpClientBuilder -> httpClientBuilder
+                                .setMaxConnTotal(maxConnections)
+                                .setMaxConnPerRoute(maxConnections)
+                                .setKeepAliveStrategy((response, context) -> keepAliveMillis))
+                .build();
+    }
+
+
+    /**
+     * Releases the connections to elasticsearch and the transform threads. The instance can not be used afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (transformPool != null) transformPool.shutdownNow();
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
         }
+    }
 
-        sampledTags.entrySet().stream()
-                .map( x -> format("\t%s: %s", x.getKey(), x.getValue()))
-                .forEach(System.out::println);
+
+    /**
+     * Given a JsonNode, pretty print it to String using Jackson's ObjectMapper
+     * @param node a valid JsonNode object
+     * @return a String containing a pretty printed version of the JsonNode
+     */
+    public String toPrettyString(JsonNode node) {
+        try {
+            return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(node);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "";
+        }
     }
 
+
     /**
-     * Given a List of JsonNode containing results from elasticsearch, calculate overall stats
-     * over the sample such as total lines read, bytes read, bytes after reduction, and compression rate.
-     * @param resultados a List of JsonNode containing results from elasticsearch
+     * Given a message apply all regular expressions read by ReplacementService
+     * from expressions.txt file
+     * This is an internal method not intended for public use.
+     * @param message the message of a log line
+     * @param expressions the compiled expressions, see {@link ReplacementsService#getExpressions()}
+     * @return the message altered by all these rules.
      */
-    private void printStatistics(List<JsonNode> resultados) {
-        Long bytes_before = getTotalBytesBeforeReplaces(resultados);
-        Long bytes_after = getTotalBytesAfterReplaces(resultados);
+    private String applyRegularExpressions(String message, ExpressionSet expressions) {
+        return expressions.apply(message);
+    }
 
-        Double ratio = bytes_after / bytes_before.doubleValue();
 
-        System.out.println(format("Lines leidas             : %d", resultados.size()));
-        System.out.println(format("Bytes mensajes originales: %d", bytes_before));
-        System.out.println(format("Bytes mensajes reducidos : %d", bytes_after));
-        System.out.println(format("Ratio de compresion      : %.2f", ratio));
+    /**
+     * Given a message replace all numbers with generic digits
+     * @param message the message of a log line
+     * @param minDigits minimun number of digits for replacement. Avoids replacing single digits
+     * @return the message with numbers generalized.
+     */
+    private String generifyNumbers(String message, int minDigits) {
+        return Utils.generalizeNumbersInMessage(message, minDigits);
     }
 
     /**
-     * Given a List of JsonNode containing results from elasticsearch,
-     * reduce the total sum of bytes from message nodes in its current state and return the total as Long
-     * @param resultados a List of JsonNode containing results from elasticsearch
-     * @return a Long holding the total bytes
+     * Given a message and the hit it belongs to, search values of the tags in
+     * {@link Tags#DISMISS} and {@link Tags#UNDIFERENTIATE} inside the <i>tags</i> of the hit and replace
+     * these values inside the message with either:
+     *  - A generic [tag:TAGNAME] (DISMISS)
+     *  - A generic [tag:value] whose numbers have been converted to 9's (UNDIFERENTIATE)
+     * The message is scanned only once, see {@link TagSubstituter}
+     * @param message the message of a log line
+     * @param hit the hit holding the tags
+     * @return the message with tag values replaced.
      */
-    private Long getTotalBytesAfterReplaces(List<JsonNode> resultados) {
-        return resultados
-                    .stream()
-                    .map(it -> it.path("message").asText().getBytes().length).reduce(0, (x, y) -> (x + y)).longValue();
+    private String replaceTags(String message, LogHit hit) {
+        return tagSubstituter.substitute(message, hit::getTag);
     }
 
 
     /**
-     * Given a List of JsonNode containing results from elasticsearch,
-     * reduce the total sum of bytes from original message nodes and return the total as Long
-     * @param resultados a List of JsonNode containing results from elasticsearch
-     * @return a Long holding the total bytes
+     * Given the aggregate of the results obtained from elasticsearch, print to stdout one sampled
+     * value for each tag found inside the _source nodes. Requires {@link LogAggregator#setSampleTags(boolean)}
+     * @param aggregate the LogAggregator of the results
+     */
+    private void dumpTags(LogAggregator aggregate) {
+
+        System.out.println("Tags sampleados:\n");
+
+        aggregate.getSampledTags().entrySet().stream()
+                .map( x -> format("\t%s: %s", x.getKey(), x.getValue()))
+                .forEach(System.out::println);
+    }
+
+    /**
+     * Given the aggregate of the results obtained from elasticsearch, print overall stats
+     * over the sample such as total lines read, bytes read, bytes after reduction, and compression rate.
+     * @param aggregate the LogAggregator of the results
      */
-    private Long getTotalBytesBeforeReplaces(List<JsonNode> resultados) {
-        return resultados
-                    .stream()
-                    .map(it -> it.path("bytes").longValue()).reduce(0L, (x, y) -> x + y);
+    private void printStatistics(LogAggregator aggregate) {
+        Long bytes_before = aggregate.getTotalBytesBeforeReplaces();
+        Long bytes_after = aggregate.getTotalBytesAfterReplaces();
+
+        Double ratio = bytes_after / bytes_before.doubleValue();
+
+        System.out.println(format("Lines leidas             : %d", aggregate.getLineCount()));
+        System.out.println(format("Bytes mensajes originales: %d", bytes_before));
+        System.out.println(format("Bytes mensajes reducidos : %d", bytes_after));
+        System.out.println(format("Ratio de compresion      : %.2f", ratio));
+        System.out.println(format("Mensajes distintos       : %d (%d colisiones de fingerprint)", templates.size(), templates.getCollisions()));
+        if (transformCache != null) {
+            long lookups = transformCache.getHits() + transformCache.getMisses();
+            System.out.println(format("Cache de transformaciones: %.2f%% de aciertos (%d de %d lines)",
+                    lookups == 0 ? 0.0 : transformCache.getHits() * 100.0 / lookups, transformCache.getHits(), lookups));
+        }
     }
 
 
@@ -538,25 +1382,80 @@ public class LogProcessorService {
     }
 
     /**
-     * Given a sorted rank of String and Long values (as map String:Long)
-     * write the rank to <code>fileName</code> file using the <code>totalSum</code> for calculating percentages
-     * @param sortedRank a sorted {@code Map<String, Long>} using message as key
-     * @param fileName name of the file to write output to
-     * @param totalSum total value to calculate % of each individual value agains the total
+     * Writes the ranking_por_{name}_count.txt and ranking_por_{name}_bytes.txt files of a ranking and dumps them
+     * @param dir directory of the files
+     * @param ranking the ranking
+     * @param name what the ranking groups by, i.e. "source"
+     * @param lines total lines of the ranking
+     * @param bytes total original bytes of the ranking
+     * @param sample the estimator when the ranking is of a sample (values are extrapolated to the whole index), or null
+     * @param dumpCount whether to dump also the ranking by count (the ranking by bytes is always dumped)
      */
-    private void writeSortedRankToFile(Map<String, Long> sortedRank, String fileName, Long totalSum) {
+    private void writeRankings(Path dir, Ranking ranking, String name, long lines, long bytes, SampleEstimator sample, boolean dumpCount) {
+        Map<String, Long> byCount = ranking.sortedByCount();
+        Map<String, Long> byBytes = ranking.sortedByBytes();
+        ToLongFunction<String> countErrors = ranking::countError;
+        ToLongFunction<String> bytesErrors = ranking::bytesError;
+        if (sample != null) {
+            countErrors = sample.countErrors(byCount, countErrors);
+            bytesErrors = sample.bytesErrors(byCount, byBytes, bytesErrors);
+            byCount = sample.scale(byCount);
+            byBytes = sample.scale(byBytes);
+            lines = sample.scale(lines);
+            bytes = sample.scale(bytes);
+        }
 
-        System.out.println(format("Escribiendo %s...",fileName));
+        writeSortedRankToFile(byCount, dir.resolve(format("ranking_por_%s_count.txt", name)), lines, countErrors);
+        if (dumpCount) dumpSortedRank(byCount, 25);
 
-        try {
-            Files.write(Paths.get(fileName), (Iterable<String>)sortedRank
-                    .entrySet().stream().map(e-> {
-                        Long value = e.getValue();
+        writeSortedRankToFile(byBytes, dir.resolve(format("ranking_por_%s_bytes.txt", name)), bytes, bytesErrors);
+        dumpSortedRank(byBytes, 25);
+    }
 
-                        BigDecimal pctg = BigDecimal.valueOf((double)value * 100L / totalSum).setScale(2, RoundingMode.HALF_UP);
+    /**
+     * Writes tendencia_por_message.txt: the lines of each of the TREND_SIZE messages with more lines in a range of days,
+     * day by day (extrapolated if sampled, with its error bound if the ranking is a sketch), and the variation of the
+     * last day against the previous one
+     * @param dir directory of the file
+     * @param byDay the LogAggregator (and the tag rankings) of each day, in order
+     * @param aggregate the LogAggregator of the whole range
+     */
+    private void writeTrend(Path dir, Map<String, LogAggregator[]> byDay, LogAggregator aggregate) {
+        Path fileName = dir.resolve("tendencia_por_message.txt");
+        System.out.println(format("Escribiendo %s...", fileName));
+
+        List<Ranking> days = new ArrayList<>(byDay.size());
+        byDay.values().forEach(day -> days.add(day[0].getByMessage()));
+        SampleEstimator sample = SampleEstimator.of(aggregate);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.join("\t", byDay.keySet()) + "\tvar\tmessage");
+        for (String message : aggregate.getByMessage().topByCount(trendSize).keySet()) {
+            StringBuilder line = new StringBuilder();
+            long previous = 0L;
+            long last = 0L;
+            for (Ranking day : days) {
+                previous = last;
+                // Busqueda por clave: con SKETCH el mensaje puede estar fuera del top de ese dia
+                last = day.count(message);
+                long error = day.countError(message);
+                if (sample != null) {
+                    last = sample.scale(last);
+                    error = sample.scale(error);
+                }
+                line.append(last);
+                if (error > 0) line.append(" ±").append(error);
+                line.append('\t');
+            }
+            // Variacion del ultimo dia contra el anterior
+            if (days.size() < 2) line.append('-');
+            else if (previous == 0) line.append(last > 0 ? "nuevo" : "-");
+            else line.append(format("%+.1f%%", (last - previous) * 100.0 / previous));
+            lines.add(line.append('\t').append(message).toString());
+        }
 
-                        return format("%d (%.2f%%): %s", value, pctg, e.getKey());
-                    })::iterator);
+        try {
+            Files.write(fileName, lines);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -564,174 +1463,58 @@ public class LogProcessorService {
     }
 
     /**
-     * Given a list of _source nodes rank the lines grouping by message
-     * and return a {@Code Map<String, Long>} for each message containing the line count
-     * @param nodes List of {@Code JsonNode}
-     * @return a sorted ranked count of each line
+     * Writes the estimated number of distinct transformed messages of each tags.source to cardinalidad_por_source.txt
+     * (most diverse sources first) and prints the distinct values of each tag of {@link Tags#UNDIFERENTIATE}
+     * @param dir directory of the file
+     * @param aggregate the LogAggregator of the results, with its HyperLogLog counters
      */
-    private Map<String, Long> countMessagesDesc(List<JsonNode> nodes) {
-        Map<String, Long> messageRank = nodes.stream()
-                .parallel()
-                .map(x -> x.path("message").asText())
-                .collect(groupingBy(Function.identity(), counting()));
+    private void writeCardinalities(Path dir, LogAggregator aggregate) {
+        Path fileName = dir.resolve("cardinalidad_por_source.txt");
+        System.out.println(format("Escribiendo %s...", fileName));
+        try {
+            Files.write(fileName, (Iterable<String>) aggregate.getMessagesBySource().entrySet().stream()
+                    .map(e -> new AbstractMap.SimpleEntry<>(e.getKey(), e.getValue().estimate()))
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .map(e -> format("~%d: %s", e.getValue(), e.getKey()))::iterator);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(format("Fin escritura %s.", fileName));
 
-        return messageRank.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue,
-                        (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new
-                ));
+        double error = new HyperLogLog(cardinalityPrecision).standardError() * 100;
+        for (String tag : Tags.UNDIFERENTIATE) {
+            HyperLogLog values = aggregate.getValuesByTag().get(tag);
+            System.out.println(format("Valores distintos de %s : ~%d (±%.1f%%)", tag, values == null ? 0L : values.estimate(), error));
+        }
     }
 
-
-
     /**
-     * Given a list of _source nodes from elasticsearch results,
-     * weight each message by original message size and generate a rank
-     * grouped by message.
-     * @param nodes a List of JsonNode containing the _source nodes
-     * @return a Map whose keys are the messages and values the sum of bytes for each message
+     * Given a sorted rank of String and Long values (as map String:Long)
+     * write the rank to <code>fileName</code> file using the <code>totalSum</code> for calculating percentages
+     * @param sortedRank a sorted {@code Map<String, Long>} using message as key
+     * @param fileName the file to write output to
+     * @param totalSum total value to calculate % of each individual value agains the total
+     * @param errors the error bound of each value (written as value ±error when not 0, see RankingMode)
      */
-    Map<String, Long> weightMessagesBySize(List<JsonNode> nodes){
-        Map<String, Long> messageRank = nodes.stream()
-                .map( x->{
-                    Long size = x.path("bytes").asLong();
-                    String message = x.path("message").asText();
-                    String source = x.path("tags").path("source").asText("");
-                    return new LogMessage(message, source,size);
-                }).collect(groupingBy(LogMessage::getMessage,
-                        summingLong(LogMessage::getSize)));
-
-        return messageRank.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue, (v1, v2) -> {
-                    throw new IllegalStateException();
-                },
-                        LinkedHashMap::new));
-
-    }
+    private void writeSortedRankToFile(Map<String, Long> sortedRank, Path fileName, Long totalSum, ToLongFunction<String> errors) {
 
+        System.out.println(format("Escribiendo %s...",fileName));
 
-    /**
-     * Given a list of _source nodes from elasticsearch results,
-     * count messages for each source (tags.source) and generate a rank
-     * @param nodes a List of JsonNode containing the _source nodes
-     * @return a Map whose keys are the source tags and values the count of messages
-     */
-    private Map<String, Long> countMessagesBySource(List<JsonNode> nodes){
-        Map<String, Long> countBySource = nodes.stream()
-                .parallel()
-                .map(x -> {
-                    String source = "";
-                    JsonNode tags = x.path("tags");
-                    if (tags != null) {
-                        source = tags.path("source").asText("NO_SOURCE");
-                    }
+        try {
+            Files.write(fileName, (Iterable<String>)sortedRank
+                    .entrySet().stream().map(e-> {
+                        Long value = e.getValue();
 
-                    return source;
-                }).collect(groupingBy(Function.identity(), counting()));
-
-        return countBySource.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue,
-                        (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new
-                ));
-    }
-
-
-    /**
-     * Given a list of _source nodes from elasticsearch results,
-     * group by each tag.source and sum original message size generating a rank
-     * @param nodes a List of JsonNode containing the _source nodes
-     * @return a Map whose keys are the source.tags and values the sum of bytes of its messages
-     */
-    Map<String, Long> weightMessagesBySource(List<JsonNode> nodes){
-        Map<String, Long> messageRank = nodes.stream()
-                .map(x -> {
-                    Long size = x.path("bytes").asLong();
-                    String message = x.path("message").asText();
-                    String source = x.path("tags").path("source").asText("NO_SOURCE");
-                    return new LogMessage(message, source, size);
-                }).collect(groupingBy(LogMessage::getSource,
-                        summingLong(LogMessage::getSize)));
-
-        return messageRank.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue, (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new));
-    }
-
-    /**
-     * Given a list of _source nodes from elasticsearch results,
-     * count messages for each scope (tags.scope) and generate a rank
-     * @param nodes a List of JsonNode containing the _source nodes
-     * @return a Map whose keys are the source tags and values the count of messages
-     */
-    private Map<String, Long> countMessagesByScope(List<JsonNode> nodes){
-        Map<String, Long> countByScope = nodes.stream()
-                .parallel()
-                .map(x -> {
-                    String scope = "";
-                    JsonNode tags = x.path("tags");
-                    if (tags != null) {
-                        scope = tags.path("scope").asText("NO_SCOPE");
-                    }
+                        BigDecimal pctg = BigDecimal.valueOf((double)value * 100L / totalSum).setScale(2, RoundingMode.HALF_UP);
 
-                    return scope;
-                }).collect(groupingBy(Function.identity(), counting()));
-
-        return countByScope.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue,
-                        (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new
-                ));
-    }
-
-
-    /**
-     * Given a list of _source nodes from elasticsearch results,
-     * group by each tag.sscope and sum original message size generating a rank
-     * @param nodes a List of JsonNode containing the _source nodes
-     * @return a Map whose keys are the source.tags and values the sum of bytes of its messages
-     */
-    Map<String, Long> weightMessagesByScope(List<JsonNode> nodes){
-        Map<String, Long> messageRank = nodes.stream()
-                .map(x -> {
-                    Long size = x.path("bytes").asLong();
-                    String message = x.path("message").asText();
-                    String source = x.path("tags").path("scope").asText("NO_SCOPE");
-                    return new LogMessage(message, source, size);
-                }).collect(groupingBy(LogMessage::getSource,
-                        summingLong(LogMessage::getSize)));
-
-        return messageRank.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue, (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new));
+                        long error = errors.applyAsLong(e.getKey());
+                        if (error > 0) return format("%d ±%d (%.2f%%): %s", value, error, pctg, e.getKey());
+                        return format("%d (%.2f%%): %s", value, pctg, e.getKey());
+                    })::iterator);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(format("Fin escritura %s.", fileName));
     }
 
 }
@@ -0,0 +1,60 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.SearchPage;
+import com.gastonmartin.model.SearchQuery;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Legacy from/size paging with URI searches. Every page is more expensive than the previous one and
+ * elasticsearch refuses to go beyond index.max_result_window (10.000 by default), so the cursor stops there
+ * with a warning, as well as after a short page or the total. Kept for proxies that only let plain GET searches through.
+ */
+class OffsetCursor extends ElasticCursor {
+
+    /* Default index.max_result_window: from + size beyond it is rejected by elasticsearch */
+    static final long MAX_RESULT_WINDOW = 10000L;
+
+    private long from = 0L;
+    /* hits.total of the first page, -1 until known */
+    private long total = -1L;
+    /* A short (or empty) page was returned, there are no more hits */
+    private boolean exhausted;
+
+    OffsetCursor(RestClient client, SearchQuery query, SearchResponseReader reader) {
+        super(client, query, reader);
+    }
+
+    @Override
+    public SearchPage next() throws IOException {
+        if (exhausted || (total >= 0 && from >= total)) {
+            return new SearchPage(total, Collections.emptyList(), null);
+        }
+        if (from >= MAX_RESULT_WINDOW) {
+            // Elastic rechaza el request, se corta aca
+            exhausted = true;
+            System.err.println(String.format("WARN: offset paging stops at index.max_result_window (%,d of %,d hits), use fetch mode PIT or SCROLL to read them all",
+                    MAX_RESULT_WINDOW, total));
+            return new SearchPage(total, Collections.emptyList(), null);
+        }
+        // La ultima pagina se achica para no pasar de la ventana
+        long size = Math.min(query.getPageSize(), MAX_RESULT_WINDOW - from);
+        String endpoint = String.format("/%s/_search?from=%d&size=%d&q=%s",
+                query.getIndex(), from, size, query.getTerms().replaceAll(" ", "%20"));
+        if (query.isProjected()) {
+            endpoint += "&_source_includes=" + String.join(",", query.getSourceFields());
+        }
+        SearchPage page = search("GET", searchEndpoint(endpoint), null);
+        if (total < 0) total = page.getTotal();
+        if (page.getHits().size() < size) exhausted = true;
+        from += size;
+        return page;
+    }
+
+    @Override
+    public void close() {
+        // Nada que liberar
+    }
+}
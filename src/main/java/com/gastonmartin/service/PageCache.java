@@ -0,0 +1,325 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.gastonmartin.model.LogHit;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local cache of the hits downloaded from elasticsearch, so running the analysis again over the same
+ * query (i.e. while tuning expressions.txt) replays them from disk instead of downloading them again.
+ * Each query (application, index, search terms) is an entry made of two files:
+ * <ul>
+ *     <li>{key}.ndjson.gz: the hits in cursor order, one Json hit per line, appended one page per gzip member
+ *     while downloading (so it can be read back in parallel, see {@link LocalFileSource})</li>
+ *     <li>{key}.properties: the query of the entry and how many hits it has out of the total</li>
+ * </ul>
+ * An entry is only visible once its download finished ({@link Writer#commit(long)}).
+ * When the cache exceeds its size the least recently used entries are evicted (reading an entry touches it).
+ */
+public class PageCache {
+
+    private static final String DATA_SUFFIX = ".ndjson.gz";
+    private static final String META_SUFFIX = ".properties";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * A complete entry of the cache
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Entry {
+        /* NDJSON (gzip) file with the hits */
+        private final Path data;
+        /* Total hits of the query in elasticsearch */
+        private final long total;
+        /* Hits in the entry (the first ones of the cursor) */
+        private final long hits;
+    }
+
+    /**
+     * @param dir directory of the cache, created if missing
+     * @param maxBytes max size of all the entries
+     */
+    public PageCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Looks up the entry of a query
+     * @param app name of the application
+     * @param index name of the index date, i.e. "2020.05.30"
+     * @param query the search terms
+     * @param maxResults how many hits are needed
+     * @return the entry if it has all the hits of the query or at least maxResults, otherwise null
+     */
+    public Entry lookup(String app, String index, String query, long maxResults) {
+        String key = key(app, index, query);
+        Path data = dir.resolve(key + DATA_SUFFIX);
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(key + META_SUFFIX))) {
+            meta.load(in);
+            long total = Long.parseLong(meta.getProperty("total"));
+            long hits = Long.parseLong(meta.getProperty("hits"));
+            if (!Files.exists(data) || hits < Math.min(total, maxResults)) return null;
+
+            // LRU: la fecha de modificacion es la del ultimo uso
+            Files.setLastModifiedTime(data, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(data, total, hits);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println(format("WARN: ignoring unreadable cache entry %s: %s", key, e));
+            return null;
+        }
+    }
+
+    /**
+     * Starts a new entry for a query, replacing the current one (if any) when committed
+     * @param app name of the application
+     * @param index name of the index date, i.e. "2020.05.30"
+     * @param query the search terms
+     * @return a Writer to append the pages to, as they are downloaded
+     * @throws IOException if the entry can not be created
+     */
+    public Writer writer(String app, String index, String query) throws IOException {
+        return new Writer(app, index, query);
+    }
+
+    /**
+     * Removes the entry of a query
+     */
+    public void invalidate(String app, String index, String query) {
+        delete(key(app, index, query));
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public void clear() {
+        entries().keySet().forEach(this::delete);
+    }
+
+    /* Removes least recently used entries (but the one just written) until the cache fits in maxBytes */
+    private void evict(String keep) {
+        Map<String, List<Path>> entries = entries();
+        long size = entries.values().stream().flatMap(List::stream).mapToLong(PageCache::size).sum();
+        List<String> byLastUse = entries.keySet().stream()
+                .sorted(Comparator.comparingLong(key -> lastModified(dir.resolve(key + DATA_SUFFIX))))
+                .collect(Collectors.toList());
+        for (String key : byLastUse) {
+            if (size <= maxBytes) break;
+            if (key.equals(keep)) continue;
+            size -= entries.get(key).stream().mapToLong(PageCache::size).sum();
+            System.out.println(format("Evicting cache entry %s", key));
+            delete(key);
+        }
+    }
+
+    /* Files of the cache grouped by entry key */
+    private Map<String, List<Path>> entries() {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(file -> !file.getFileName().toString().endsWith(PART_SUFFIX))
+                    .collect(Collectors.groupingBy(file -> {
+                        String name = file.getFileName().toString();
+                        int dot = name.indexOf('.');
+                        return dot < 0 ? name : name.substring(0, dot);
+                    }));
+        } catch (IOException e) {
+            // Rethrow as runtime non checked exception.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void delete(String key) {
+        for (String suffix : new String[]{META_SUFFIX, DATA_SUFFIX}) {
+            try {
+                Files.deleteIfExists(dir.resolve(key + suffix));
+            } catch (IOException e) {
+                System.err.println(format("WARN: could not delete cache file %s%s: %s", key, suffix, e));
+            }
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static String key(String app, String index, String query) {
+        return DigestUtils.sha1Hex(app + '\n' + index + '\n' + query);
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(format, args);
+    }
+
+    /**
+     * Appends the pages of a query being downloaded to a new entry. Pages may come from several threads (slices).
+     * Either {@link #commit(long)} or {@link #abort()} must be called when done.
+     */
+    public class Writer {
+        private final String app;
+        private final String index;
+        private final String query;
+        private final String key;
+        private final Path part;
+        private final Path metaPart;
+        private final OutputStream out;
+        private long hits;
+        private boolean done;
+        /* The data file replaced the previous one but the properties may still be the previous ones */
+        private boolean dataMoved;
+
+        private Writer(String app, String index, String query) throws IOException {
+            this.app = app;
+            this.index = index;
+            this.query = query;
+            this.key = key(app, index, query);
+            this.part = dir.resolve(key + DATA_SUFFIX + PART_SUFFIX);
+            this.metaPart = dir.resolve(key + META_SUFFIX + PART_SUFFIX);
+            this.out = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Appends a page as a new gzip member
+         * @param page the hits of the page, in order
+         * @throws IOException if the page can not be written
+         */
+        public synchronized void append(List<LogHit> page) throws IOException {
+            if (page.isEmpty()) return;
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new Unclosable(out), 1 << 16);
+                 JsonGenerator json = FACTORY.createGenerator(gzip, JsonEncoding.UTF8)) {
+                json.setRootValueSeparator(null);
+                for (LogHit hit : page) {
+                    json.writeStartObject();
+                    if (hit.getId() != null) json.writeStringField("_id", hit.getId());
+                    json.writeObjectFieldStart("_source");
+                    json.writeStringField("message", hit.getMessage());
+                    json.writeObjectFieldStart("tags");
+                    for (Map.Entry<String, String> tag : hit.getTags().entrySet()) {
+                        json.writeStringField(tag.getKey(), tag.getValue());
+                    }
+                    json.writeEndObject();
+                    json.writeEndObject();
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                }
+            }
+            hits += page.size();
+        }
+
+        /**
+         * Makes the entry visible (replacing the previous one) and evicts old entries if the cache is too big.
+         * If it fails the entry is not done yet, {@link #abort()} removes its files.
+         * @param total total hits of the query in elasticsearch
+         * @throws IOException if the entry can not be written
+         */
+        public synchronized void commit(long total) throws IOException {
+            out.close();
+
+            Properties meta = new Properties();
+            meta.setProperty("app", app);
+            meta.setProperty("index", index);
+            meta.setProperty("query", query);
+            meta.setProperty("total", String.valueOf(total));
+            meta.setProperty("hits", String.valueOf(hits));
+            try (OutputStream metaOut = Files.newOutputStream(metaPart)) {
+                meta.store(metaOut, "log-analizer-tool page cache entry");
+            }
+            Files.move(part, dir.resolve(key + DATA_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dataMoved = true;
+            Files.move(metaPart, dir.resolve(key + META_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Recien ahora: si algo fallo antes, abort() borra los .part
+            done = true;
+
+            evict(key);
+        }
+
+        /**
+         * Discards the entry, the previous one (if any) is kept unless a failed commit already replaced its data.
+         * Does nothing if already committed.
+         */
+        public synchronized void abort() {
+            if (done) return;
+            done = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println(format("WARN: could not close cache file %s: %s", part, e));
+            }
+            for (Path file : new Path[]{part, metaPart}) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    System.err.println(format("WARN: could not delete cache file %s: %s", file, e));
+                }
+            }
+            // Los datos nuevos con las propiedades viejas no sirven
+            if (dataMoved) delete(key);
+        }
+    }
+
+    /* Lets a gzip member be finished without closing the file it is appended to */
+    private static class Unclosable extends FilterOutputStream {
+        Unclosable(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.LogHit;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Overlaps fetching pages with transforming them:
+ * <pre>
+ *   S fetchers (one per source) --&gt; batches of at most K + N pages --&gt; pool of N transform threads --&gt; merged LogAggregator
+ * </pre>
+ * Each page is split in up to N batches of about the same size, submitted as tasks to a dedicated
+ * {@link ForkJoinPool} (see {@link #newTransformPool(int)}) that concurrent pipelines may share, so the
+ * number of transform threads is bounded whatever the number of days or applications analyzed at once.
+ * The fetch stage blocks when K + N pages are not transformed yet (backpressure), so at most
+ * K + N + S pages are in memory whatever the number of results.
+ * Each thread aggregates into its own LogAggregator, they are merged once all pages are done.
+ * Alternatively ({@link #runOrdered}) each page is aggregated on its own and handed over in page order,
+ * i.e. to checkpoint after whole pages.
+ */
+public class PagePipeline {
+
+    /**
+     * Produces the pages to transform, in order
+     */
+    @FunctionalInterface
+    public interface PageSource {
+        /**
+         * @return the next page of hits, an empty list (or null) when there are no more
+         * @throws IOException on communication errors
+         */
+        List<LogHit> next() throws IOException;
+    }
+
+    /**
+     * Transforms one hit and accounts it in the aggregator of the worker
+     */
+    @FunctionalInterface
+    public interface HitConsumer {
+        void accept(LogAggregator aggregator, int pageNumber, LogHit hit);
+    }
+
+    /**
+     * Receives, in page order, each page with the aggregate of just its hits
+     */
+    @FunctionalInterface
+    public interface PageSink {
+        void accept(int pageNumber, List<LogHit> hits, LogAggregator page) throws IOException;
+    }
+
+    /* A fetched page, numbered for logging, transformed by one or more batches */
+    private static class Page {
+        final int number;
+        final List<LogHit> hits;
+        /* Batches of the page not transformed yet */
+        final AtomicInteger pendingBatches;
+        /* Aggregate of just this page, when delivered in order */
+        LogAggregator aggregate;
+
+        Page(int number, List<LogHit> hits, int batches) {
+            this.number = number;
+            this.hits = hits;
+            this.pendingBatches = new AtomicInteger(batches);
+        }
+    }
+
+    /* Pages smaller than this are not split, each batch pays a task submission */
+    static final int MIN_BATCH_HITS = 64;
+
+    /* How often a blocked producer checks whether the workers have failed */
+    private static final long FAILURE_CHECK_MILLIS = 200L;
+
+    private final int prefetchPages;
+    private final ForkJoinPool pool;
+    private final int workers;
+
+    /* Counters of the last run */
+    @Getter
+    private PipelineStats stats;
+
+    /**
+     * @param prefetchPages K, max number of fetched pages waiting to be transformed
+     * @param pool the transform pool, its parallelism is N. May be shared by concurrent pipelines
+     */
+    public PagePipeline(int prefetchPages, ForkJoinPool pool) {
+        if (prefetchPages < 1) throw new IllegalArgumentException("prefetchPages must be positive: " + prefetchPages);
+        this.prefetchPages = prefetchPages;
+        this.pool = pool;
+        this.workers = pool.getParallelism();
+    }
+
+    /**
+     * Creates a pool of transform threads, to be shut down by the caller once no pipeline uses it
+     * @param workers N, number of transform threads
+     * @return a ForkJoinPool of daemon threads named transform-i
+     */
+    public static ForkJoinPool newTransformPool(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("workers must be positive: " + workers);
+        // asyncMode: los batches son tareas independientes, se atienden en orden de llegada
+        return new ForkJoinPool(workers, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("transform-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Fetches all the pages of the source in the calling thread while the workers transform them
+     * @param source where pages come from
+     * @param newAggregator creates the (empty) aggregator of each worker
+     * @param consumer transforms and aggregates a hit
+     * @return a LogAggregator with all the hits of all the pages
+     */
+    public LogAggregator run(PageSource source, Supplier<LogAggregator> newAggregator, HitConsumer consumer) {
+        return run(Collections.singletonList(source), newAggregator, consumer);
+    }
+
+    /**
+     * Fetches the pages of several sources concurrently (each one in its own thread, the only one in the
+     * calling thread) while the workers transform them
+     * @param sources where pages come from, i.e. the slices of a search
+     * @param newAggregator creates the (empty) aggregator of each worker
+     * @param consumer transforms and aggregates a hit
+     * @return a LogAggregator with all the hits of all the pages of all the sources
+     */
+    public LogAggregator run(List<? extends PageSource> sources, Supplier<LogAggregator> newAggregator, HitConsumer consumer) {
+        return run(sources, newAggregator, consumer, null);
+    }
+
+    /**
+     * Fetches all the pages of the source in the calling thread while the workers transform them, handing
+     * each page to the sink in page order once it (and all the previous ones) have been transformed.
+     * Pages are not split in batches, each one is aggregated on its own.
+     * @param source where pages come from, in order
+     * @param newAggregator creates the (empty) aggregator of each page
+     * @param consumer transforms and aggregates a hit
+     * @param sink receives the pages in order, one at a time
+     */
+    public void runOrdered(PageSource source, Supplier<LogAggregator> newAggregator, HitConsumer consumer, PageSink sink) {
+        run(Collections.singletonList(source), newAggregator, consumer, new OrderedDelivery(sink));
+    }
+
+    private LogAggregator run(List<? extends PageSource> sources, Supplier<LogAggregator> newAggregator, HitConsumer consumer,
+                              OrderedDelivery delivery) {
+        // K paginas esperando mas las N que se estan transformando, como con una cola delante de los workers
+        int capacity = prefetchPages + workers;
+        Run run = new Run(new Semaphore(capacity), newAggregator, consumer, delivery);
+        stats = new PipelineStats(capacity, sources.size(), workers);
+
+        ExecutorService fetchers = sources.size() > 1
+                ? Executors.newFixedThreadPool(sources.size(), daemonThreads("fetch-"))
+                : null;
+        try {
+            try {
+                if (fetchers == null) {
+                    fetchLoop(sources.get(0), run);
+                } else {
+                    List<Future<?>> fetches = new ArrayList<>(sources.size());
+                    for (PageSource source : sources) {
+                        fetches.add(fetchers.submit(() -> {
+                            fetchLoop(source, run);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> fetch : fetches) {
+                        fetch.get();
+                    }
+                }
+            } catch (RuntimeException | InterruptedException | ExecutionException e) {
+                // Los batches pendientes no se transforman, los demas fetchers dejan de pedir paginas
+                run.failure.compareAndSet(null, e instanceof ExecutionException ? e.getCause() : e);
+                throw e;
+            }
+
+            // Esperar a que terminen todos los batches: devuelven sus permisos
+            while (!run.inFlight.tryAcquire(capacity, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (run.failure.get() != null) break;
+            }
+            Throwable failed = run.failure.get();
+            if (failed instanceof Error) throw (Error) failed;
+            if (failed != null) {
+                // Rethrow the failure of the worker as runtime non checked exception.
+                throw failed instanceof RuntimeException ? (RuntimeException) failed : new RuntimeException(failed);
+            }
+
+            LogAggregator aggregate = newAggregator.get();
+            for (LogAggregator aggregator : run.aggregators.values()) {
+                aggregate.merge(aggregator);
+            }
+            return aggregate;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Rethrow the failure of the fetcher as runtime non checked exception.
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            if (fetchers != null) fetchers.shutdownNow();
+            stats.finish();
+        }
+    }
+
+    /* State of one run, shared by its fetchers and batches */
+    private static class Run {
+        /* One permit per page not fully transformed yet (backpressure) */
+        final Semaphore inFlight;
+        final Supplier<LogAggregator> newAggregator;
+        final HitConsumer consumer;
+        final OrderedDelivery delivery;
+        /* Aggregator of each transform thread in this run, only touched by that thread until merged */
+        final Map<Thread, LogAggregator> aggregators = new ConcurrentHashMap<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger pageNumbers = new AtomicInteger();
+
+        Run(Semaphore inFlight, Supplier<LogAggregator> newAggregator, HitConsumer consumer, OrderedDelivery delivery) {
+            this.inFlight = inFlight;
+            this.newAggregator = newAggregator;
+            this.consumer = consumer;
+            this.delivery = delivery;
+        }
+    }
+
+    private void fetchLoop(PageSource source, Run run) throws InterruptedException {
+        while (run.failure.get() == null) {
+            long start = System.nanoTime();
+            List<LogHit> hits;
+            try {
+                hits = source.next();
+            } catch (IOException e) {
+                // Rethrow as runtime non checked exception.
+                throw new RuntimeException(e);
+            }
+            if (hits == null || hits.isEmpty()) return;
+            stats.getFetch().work(hits.size(), System.nanoTime() - start);
+
+            if (!submit(run, hits)) return;
+        }
+    }
+
+    /* Blocks while the pipeline is full (backpressure), gives up if anything failed. Returns whether it was submitted */
+    private boolean submit(Run run, List<LogHit> hits) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            while (!run.inFlight.tryAcquire(FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (run.failure.get() != null) return false;
+            }
+        } finally {
+            stats.getFetch().waited(System.nanoTime() - start);
+        }
+        stats.sampleDepth(stats.getQueueCapacity() - run.inFlight.availablePermits());
+
+        // Batches parejos (difieren en a lo sumo un hit) para que ningun worker quede con la cola larga
+        int batches = run.delivery != null ? 1 : Math.max(1, Math.min(workers, hits.size() / MIN_BATCH_HITS));
+        Page page = new Page(run.pageNumbers.incrementAndGet(), hits, batches);
+        long submitted = System.nanoTime();
+        for (int i = 0; i < batches; i++) {
+            int from = (int) ((long) hits.size() * i / batches);
+            int to = (int) ((long) hits.size() * (i + 1) / batches);
+            pool.execute(() -> transform(run, page, from, to, submitted));
+        }
+        return true;
+    }
+
+    private void transform(Run run, Page page, int from, int to, long submitted) {
+        long start = System.nanoTime();
+        stats.getTransform().waited(start - submitted);
+        try {
+            if (run.failure.get() != null) return;
+            LogAggregator target = run.delivery != null
+                    ? run.newAggregator.get()
+                    : run.aggregators.computeIfAbsent(Thread.currentThread(), thread -> run.newAggregator.get());
+            List<LogHit> hits = page.hits;
+            for (int i = from; i < to; i++) {
+                run.consumer.accept(target, page.number, hits.get(i));
+            }
+            stats.getTransform().work(to - from, System.nanoTime() - start);
+            if (run.delivery != null) {
+                page.aggregate = target;
+                run.delivery.completed(page);
+            }
+        } catch (RuntimeException | Error e) {
+            run.failure.compareAndSet(null, e);
+        } finally {
+            if (page.pendingBatches.decrementAndGet() == 0) run.inFlight.release();
+        }
+    }
+
+    /* Hands pages to the sink in page order, whatever the order the workers finish them in */
+    private static class OrderedDelivery {
+        private final PageSink sink;
+        /* Finished pages waiting for a previous one, at most K + N */
+        private final Map<Integer, Page> pending = new HashMap<>();
+        private int next = 1;
+
+        OrderedDelivery(PageSink sink) {
+            this.sink = sink;
+        }
+
+        synchronized void completed(Page page) {
+            pending.put(page.number, page);
+            Page ready;
+            while ((ready = pending.remove(next)) != null) {
+                try {
+                    sink.accept(ready.number, ready.hits, ready.aggregate);
+                } catch (IOException e) {
+                    // Rethrow as runtime non checked exception.
+                    throw new RuntimeException(e);
+                }
+                next++;
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.LogHit;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses plain log lines with a regular expression whose capture groups are mapped, in order, to
+ * field names (see LOCAL_LINE_PATTERN and LOCAL_LINE_FIELDS in config.properties).
+ * The field "message" is the message of the hit, every other field is a tag. Without a "message" field
+ * the whole line is the message (as elasticsearch does, tags are usually also inside the message).
+ * Lines not matching the pattern are kept as a message with no tags.
+ */
+public class PatternLineParser implements LineParser {
+
+    private static final String MESSAGE = "message";
+
+    private final Pattern pattern;
+    private final List<String> fields;
+
+    /* Matchers are reused per thread, the Pattern is shared */
+    private final ThreadLocal<Matcher> matchers;
+
+    /**
+     * @param regex the line pattern, with one capture group per field
+     * @param fields comma separated names of the capture groups, in order (empty names are ignored)
+     */
+    public PatternLineParser(String regex, String fields) {
+        this.pattern = Pattern.compile(regex);
+        this.fields = Arrays.asList(fields.split(",", -1));
+        int groups = pattern.matcher("").groupCount();
+        if (this.fields.size() > groups) {
+            throw new RuntimeException(String.format("Line pattern %s has %d groups but %d fields were given: %s",
+                    regex, groups, this.fields.size(), fields));
+        }
+        this.matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+
+    @Override
+    public LogHit parse(String line) {
+        Map<String, String> tags = new HashMap<>();
+        String message = line;
+
+        Matcher matcher = matchers.get().reset(line);
+        if (matcher.find()) {
+            for (int i = 0; i < fields.size(); i++) {
+                String field = fields.get(i).trim();
+                String value = matcher.group(i + 1);
+                if (field.isEmpty() || value == null) continue;
+                if (MESSAGE.equals(field)) message = value;
+                else tags.put(field, value);
+            }
+        }
+        return new LogHit(null, message, tags, null);
+    }
+}
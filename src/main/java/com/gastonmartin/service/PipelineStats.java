@@ -0,0 +1,145 @@
+package com.gastonmartin.service;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Counters of a {@link PagePipeline} run: work done and time spent by each stage and how many pages
+ * were in flight between them.
+ * A fetch stage blocked on a full pipeline means transform is the bottleneck (add threads), batches that
+ * barely wait for a thread while fetch is busy mean fetch is the bottleneck (raise the prefetch or the page size).
+ * All counters are thread safe.
+ */
+public class PipelineStats {
+
+    /**
+     * Counters of one stage of the pipeline
+     */
+    public static class Stage {
+        @Getter
+        private final String name;
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        /* Time spent doing actual work (summed over all the threads of the stage) */
+        private final LongAdder busyNanos = new LongAdder();
+        /* Time spent waiting: blocked on a full pipeline for the producer, queued in the pool for the batches */
+        private final LongAdder waitNanos = new LongAdder();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void work(int hitCount, long nanos) {
+            pages.increment();
+            hits.add(hitCount);
+            busyNanos.add(nanos);
+        }
+
+        void waited(long nanos) {
+            waitNanos.add(nanos);
+        }
+
+        public long getPages() {
+            return pages.sum();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getBusyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(busyNanos.sum());
+        }
+
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+        }
+
+        /**
+         * @return hits processed per second of busy time, that is, the throughput of a single thread of the stage
+         */
+        public double getHitsPerBusySecond() {
+            long nanos = busyNanos.sum();
+            return nanos == 0L ? 0d : hits.sum() * 1e9 / nanos;
+        }
+    }
+
+    @Getter
+    private final Stage fetch = new Stage("fetch");
+
+    @Getter
+    private final Stage transform = new Stage("transform");
+
+    @Getter
+    private final int queueCapacity;
+
+    @Getter
+    private final int fetchers;
+
+    @Getter
+    private final int workers;
+
+    private final LongAdder depthSum = new LongAdder();
+    private final LongAdder depthSamples = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+
+    PipelineStats(int queueCapacity, int fetchers, int workers) {
+        this.queueCapacity = queueCapacity;
+        this.fetchers = fetchers;
+        this.workers = workers;
+    }
+
+    /* Called by the producer right after admitting a page */
+    void sampleDepth(int depth) {
+        depthSum.add(depth);
+        depthSamples.increment();
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public double getAverageQueueDepth() {
+        long samples = depthSamples.sum();
+        return samples == 0L ? 0d : depthSum.sum() / (double) samples;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long getElapsedMillis() {
+        long end = endNanos == 0L ? System.nanoTime() : endNanos;
+        return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    /**
+     * @return human readable lines with the counters of each stage and of the queue
+     */
+    public List<String> report() {
+        long elapsed = Math.max(getElapsedMillis(), 1L);
+        List<String> lines = new ArrayList<>();
+        lines.add(format("Pipeline: %d ms, %,d hits, %.0f hits/s",
+                elapsed, transform.getHits(), transform.getHits() * 1000d / elapsed));
+        lines.add(format("\t%-9s x%d: %,d pages, %,d hits, busy %d ms (%.0f hits/s per fetcher), blocked on full pipeline %d ms",
+                fetch.getName(), fetchers, fetch.getPages(), fetch.getHits(), fetch.getBusyMillis(),
+                fetch.getHitsPerBusySecond(), fetch.getWaitMillis()));
+        lines.add(format("\t%-9s x%d: %,d batches, %,d hits, busy %d ms (%.0f hits/s per thread), batches queued %d ms",
+                transform.getName(), workers, transform.getPages(), transform.getHits(), transform.getBusyMillis(),
+                transform.getHitsPerBusySecond(), transform.getWaitMillis()));
+        lines.add(format("\tin flight : capacity %d pages, average %.1f, max %d",
+                queueCapacity, getAverageQueueDepth(), getMaxQueueDepth()));
+        return lines;
+    }
+}
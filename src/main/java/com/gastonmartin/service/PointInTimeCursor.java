@@ -0,0 +1,77 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.model.SearchPage;
+import com.gastonmartin.model.SearchQuery;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pages with search_after over a point in time (elasticsearch 7.12+).
+ * The point in time freezes the view of the index, and the sort on the configured field plus _shard_doc
+ * is total, so documents are neither skipped nor duplicated even if the index changes during the run,
+ * and every page costs the same no matter how deep it is.
+ * When the search is sliced all the slices share the same point in time, opened and closed by the first one.
+ */
+class PointInTimeCursor extends ElasticCursor {
+
+    private String pitId;
+    private Object[] searchAfter;
+    private boolean first = true;
+    /* Whether this cursor opened the point in time and has to close it */
+    private final boolean owner;
+
+    /**
+     * Opens a point in time on the index of the query
+     * @throws IOException if the cluster (or the proxy in front of it) does not support point in time
+     */
+    PointInTimeCursor(RestClient client, SearchQuery query, SearchResponseReader reader) throws IOException {
+        super(client, query, reader);
+        String endpoint = String.format("/%s/_pit?keep_alive=%s", query.getIndex(), query.getKeepAlive());
+        pitId = MAPPER.readTree(send("POST", endpoint, null).getEntity().getContent()).path("id").asText(null);
+        if (pitId == null) throw new IOException("No point in time id in response of " + endpoint);
+        owner = true;
+    }
+
+    /**
+     * Reads another slice of the point in time opened by {@code opener}
+     */
+    PointInTimeCursor(PointInTimeCursor opener, SearchQuery query) {
+        super(opener.client, query, opener.reader);
+        pitId = opener.pitId;
+        owner = false;
+    }
+
+    @Override
+    public SearchPage next() throws IOException {
+        ObjectNode body = searchBody();
+        body.putObject("pit").put("id", pitId).put("keep_alive", query.getKeepAlive());
+        ArrayNode sort = body.putArray("sort");
+        sort.addObject().putObject(query.getSortField()).put("order", "asc").put("unmapped_type", "date");
+        sort.addObject().put("_shard_doc", "asc");
+        if (first) {
+            body.put("track_total_hits", true);
+        }
+        if (searchAfter != null) {
+            body.set("search_after", MAPPER.valueToTree(searchAfter));
+        }
+
+        SearchPage page = search("POST", searchEndpoint("/_search"), body);
+        first = false;
+        if (page.getCursorId() != null) pitId = page.getCursorId();
+        List<LogHit> hits = page.getHits();
+        if (!hits.isEmpty()) searchAfter = hits.get(hits.size() - 1).getSort();
+        return page;
+    }
+
+    @Override
+    public void close() {
+        if (!owner) return;
+        ObjectNode body = MAPPER.createObjectNode().put("id", pitId);
+        sendQuietly("DELETE", "/_pit", body);
+    }
+}
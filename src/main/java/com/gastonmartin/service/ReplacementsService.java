@@ -2,18 +2,26 @@ package com.gastonmartin.service;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.nio.file.attribute.FileTime;
 
 public class ReplacementsService {
+
+    /* How often (at most) the expressions file is checked for changes */
+    private static final long RELOAD_CHECK_INTERVAL_MILLIS = 2000L;
+
     Path expressionsPath;
 
+    /* Compiled expressions currently in use. Replaced as a whole when the file changes */
+    private volatile ExpressionSet expressions;
+
+    private volatile long nextReloadCheck;
+
+    /* Modification time of the last version of the file we tried to load (valid or not) */
+    private FileTime checkedModified;
+
     public ReplacementsService() {
         try {
             expressionsPath = Paths.get(ClassLoader.getSystemResource("expressions.txt").toURI());
@@ -22,59 +30,42 @@ public class ReplacementsService {
             throw new RuntimeException(e);
         }
         // Fallar rapido si alguna regex no compila
-        checkExpressions();
+        expressions = ExpressionSet.load(expressionsPath);
+        checkedModified = expressions.getLastModified();
+        nextReloadCheck = System.currentTimeMillis() + RELOAD_CHECK_INTERVAL_MILLIS;
     }
 
-    private  List<String[]> readExpressions(){
-        try {
-            return Files
-                    .lines(expressionsPath, Charset.defaultCharset())
-                    .filter( x-> !x.trim().isEmpty())
-                    .filter( x-> !x.startsWith("#"))
-                    .map(line -> line.split("\\|"))
-                    .collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Returns the compiled expressions, reloading them first if expressions.txt changed on disk.
+     * If the edited file is invalid the error is reported and the previous expressions are kept.
+     * @return the current ExpressionSet
+     */
+    public ExpressionSet getExpressions() {
+        long now = System.currentTimeMillis();
+        if (now >= nextReloadCheck) {
+            reloadIfModified(now);
         }
+        return expressions;
     }
 
-    private void checkExpressions(){
-        try{
-            Files
-                    .lines(expressionsPath, Charset.defaultCharset())
-                    .filter( x-> !x.trim().isEmpty())
-                    .filter( x-> !x.startsWith("#"))
-                    .map(line -> {
-                        String[] parts = line.split("\\|");
-                        if (parts.length != 2) {
-                            System.err.println("ERROR: reading expressions, line:\n" + line + "\nExpected 2 expressions separated by |, but got " + parts.length);
-                            throw new RuntimeException("unexpected number of expressions");
-                        }
-                        return parts[0];
-                    }).forEach( pattern -> {
-                        // Con esto pruebo si el pattern es valido.
-                        Pattern.compile(pattern);
-            });
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public String replace(String pattern, String replacement, String line){
+    private synchronized void reloadIfModified(long now) {
+        if (now < nextReloadCheck) return; // otro thread ya lo chequeo
+        nextReloadCheck = now + RELOAD_CHECK_INTERVAL_MILLIS;
+        try {
+            FileTime lastModified = Files.getLastModifiedTime(expressionsPath);
+            if (lastModified.equals(checkedModified)) return;
+            checkedModified = lastModified;
 
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(line);
-        String s = m.replaceAll(replacement);
-        return s;
+            ExpressionSet reloaded = ExpressionSet.load(expressionsPath);
+            expressions = reloaded;
+            System.out.println(String.format("Reloaded %d expressions (%d indexed by literal) from %s",
+                    reloaded.size(), reloaded.indexedSize(), expressionsPath));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: reloading " + expressionsPath + ", keeping previous expressions: " + e.getMessage());
+        }
     }
 
     public String applyAllReplacements(String line){
-
-        for (String[] exp : readExpressions()) {
-            String regexp = exp[0];
-            String replacement = exp[1];
-            line = replace(regexp, replacement, line);
-        }
-        return line;
+        return getExpressions().apply(line);
     }
 }
@@ -0,0 +1,99 @@
+package com.gastonmartin.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Extrapolates the rankings of a uniform random sample to the whole index. When each of the N documents is
+ * sampled independently with probability f (n = f·N of them read), a key seen c times in the sample is estimated
+ * in c/f documents, with a 95% confidence interval of ±1.96·√(c·(1-f))/f (Horvitz-Thompson estimator of a
+ * Bernoulli sample). Bytes are scaled the same way, their interval assumes the lines of a key have similar sizes
+ * (true for a transformed message, an approximation for sources and scopes).
+ */
+class SampleEstimator {
+
+    /* Normal quantile of a 95% confidence interval */
+    private static final double Z_95 = 1.96;
+
+    private final double fraction;
+
+    /**
+     * @param sampled lines read
+     * @param population documents they were sampled from
+     */
+    SampleEstimator(long sampled, long population) {
+        this.fraction = (double) sampled / population;
+    }
+
+    /**
+     * @param aggregate a LogAggregator
+     * @return the estimator of its sample, or null if its lines are all the documents
+     */
+    static SampleEstimator of(LogAggregator aggregate) {
+        if (aggregate.getPopulation() <= aggregate.getLineCount() || aggregate.getLineCount() == 0) return null;
+        return new SampleEstimator(aggregate.getLineCount(), aggregate.getPopulation());
+    }
+
+    /**
+     * @return fraction of the documents that were sampled
+     */
+    double getFraction() {
+        return fraction;
+    }
+
+    /**
+     * @param value a count or bytes of the sample
+     * @return the estimated value in the whole index
+     */
+    long scale(long value) {
+        return Math.round(value / fraction);
+    }
+
+    /**
+     * @param ranking a sorted ranking of the sample
+     * @return the ranking with its values estimated in the whole index, in the same order
+     */
+    Map<String, Long> scale(Map<String, Long> ranking) {
+        Map<String, Long> scaled = new LinkedHashMap<>(ranking.size() * 2);
+        ranking.forEach((key, value) -> scaled.put(key, scale(value)));
+        return scaled;
+    }
+
+    /**
+     * @param count lines of a key in the sample
+     * @return half width of the 95% confidence interval of its estimated lines in the whole index
+     */
+    long countInterval(long count) {
+        return Math.round(Z_95 * Math.sqrt(count * (1.0 - fraction)) / fraction);
+    }
+
+    /**
+     * @param count lines of a key in the sample
+     * @param bytes bytes of those lines
+     * @return half width of the 95% confidence interval of its estimated bytes in the whole index
+     */
+    long bytesInterval(long count, long bytes) {
+        if (count == 0) return 0L;
+        return Math.round((double) bytes / count * countInterval(count));
+    }
+
+    /**
+     * @param counts lines of each key in the sample
+     * @param errors error bound of each count of the sample (i.e. of a SKETCH ranking)
+     * @return the error of each estimated count: the interval plus the scaled error bound
+     */
+    ToLongFunction<String> countErrors(Map<String, Long> counts, ToLongFunction<String> errors) {
+        return key -> scale(errors.applyAsLong(key)) + countInterval(counts.getOrDefault(key, 0L));
+    }
+
+    /**
+     * @param counts lines of each key in the sample
+     * @param bytes bytes of each key in the sample
+     * @param errors error bound of each bytes of the sample (i.e. of a SKETCH ranking)
+     * @return the error of each estimated bytes: the interval plus the scaled error bound
+     */
+    ToLongFunction<String> bytesErrors(Map<String, Long> counts, Map<String, Long> bytes, ToLongFunction<String> errors) {
+        return key -> scale(errors.applyAsLong(key)) + bytesInterval(counts.getOrDefault(key, 0L), bytes.getOrDefault(key, 0L));
+    }
+}
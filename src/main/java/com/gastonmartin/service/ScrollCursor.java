@@ -0,0 +1,48 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.gastonmartin.model.SearchPage;
+import com.gastonmartin.model.SearchQuery;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+
+/**
+ * Pages through a scroll context. Like a point in time it is a frozen view of the index and
+ * the cost per page does not grow with depth. Used where point in time is not available.
+ * Hits come in index order unless the query asks for them in sort field order.
+ */
+class ScrollCursor extends ElasticCursor {
+
+    private String scrollId;
+
+    ScrollCursor(RestClient client, SearchQuery query, SearchResponseReader reader) {
+        super(client, query, reader);
+    }
+
+    @Override
+    public SearchPage next() throws IOException {
+        SearchPage page;
+        if (scrollId == null) {
+            ObjectNode body = searchBody();
+            // _doc es el orden mas barato para scroll
+            body.putArray("sort").add(query.isOrdered() ? query.getSortField() : "_doc");
+            page = search("POST", searchEndpoint(String.format("/%s/_search?scroll=%s", query.getIndex(), query.getKeepAlive())), body);
+        } else {
+            ObjectNode body = MAPPER.createObjectNode()
+                    .put("scroll", query.getKeepAlive())
+                    .put("scroll_id", scrollId);
+            page = search("POST", searchEndpoint("/_search/scroll"), body);
+        }
+        if (page.getCursorId() != null) scrollId = page.getCursorId();
+        return page;
+    }
+
+    @Override
+    public void close() {
+        if (scrollId == null) return;
+        ObjectNode body = MAPPER.createObjectNode();
+        body.putArray("scroll_id").add(scrollId);
+        sendQuietly("DELETE", "/_search/scroll", body);
+    }
+}
@@ -0,0 +1,27 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.SearchPage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Iterates over the pages of results of a search. The first page also carries the total count
+ * of matching documents, so pagination and counting use the same request.
+ * Cursors hold resources in elasticsearch (point in time, scroll context) and must be closed.
+ */
+public interface SearchCursor extends Closeable {
+
+    /**
+     * Fetches the next page of results
+     * @return the next page, with no hits when there are no more results
+     * @throws IOException on communication errors with elasticsearch
+     */
+    SearchPage next() throws IOException;
+
+    /**
+     * Releases the resources held in elasticsearch. Errors are reported but not thrown.
+     */
+    @Override
+    void close();
+}
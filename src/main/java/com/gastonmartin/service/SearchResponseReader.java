@@ -0,0 +1,187 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.model.SearchPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads an elasticsearch search response token by token straight from its InputStream, keeping
+ * only hits.total, pit_id or _scroll_id and, for each hit, _id, _source.message, _source.tags.* and sort.
+ * Everything else is skipped without being materialized (no String of the body, no JsonNode tree).
+ * Also reads single documents (i.e. the lines of an NDJSON export), see {@link #readDocument(String)}.
+ */
+public class SearchResponseReader {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * Parses a search response
+     * @param in the response body (it is closed when done)
+     * @return a SearchPage with the total and the hits of the response
+     * @throws IOException if the body can not be read or is not valid Json
+     */
+    public SearchPage read(InputStream in) throws IOException {
+        long total = -1L;
+        String cursorId = null;
+        List<LogHit> hits = new ArrayList<>();
+
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected search response, expected a Json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("hits".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                    total = readHits(parser, hits);
+                } else if ("pit_id".equals(field) || "_scroll_id".equals(field)) {
+                    cursorId = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new SearchPage(total, hits, cursorId);
+    }
+
+    /**
+     * Parses one exported document, either a _source ({"message": ..., "tags": {...}})
+     * or a whole hit ({"_id": ..., "_source": {...}})
+     * @param json the document
+     * @return a LogHit with the id (if any), message and tags of the document
+     * @throws IOException if the document is not a valid Json object
+     */
+    public LogHit readDocument(String json) throws IOException {
+        String id = null;
+        String message = "";
+        Map<String, String> tags = new HashMap<>();
+
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected document, expected a Json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("_id".equals(field)) {
+                    id = parser.getValueAsString();
+                } else if ("_source".equals(field) && token == JsonToken.START_OBJECT) {
+                    message = readSource(parser, tags);
+                } else {
+                    String value = readSourceField(parser, field, token, tags);
+                    if (value != null) message = value;
+                }
+            }
+        }
+        return new LogHit(id, message, tags, null);
+    }
+
+    /* Reads the outer "hits" object, returns hits.total */
+    private long readHits(JsonParser parser, List<LogHit> hits) throws IOException {
+        long total = -1L;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("total".equals(field)) {
+                total = readTotal(parser, token);
+            } else if ("hits".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    hits.add(readHit(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return total;
+    }
+
+    /* Elasticsearch < 7 returns a number, 7+ returns {"value": n, "relation": "eq"} */
+    private long readTotal(JsonParser parser, JsonToken token) throws IOException {
+        if (token.isNumeric()) return parser.getLongValue();
+        long total = -1L;
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("value".equals(field)) total = parser.getLongValue();
+                else parser.skipChildren();
+            }
+        }
+        return total;
+    }
+
+    private LogHit readHit(JsonParser parser) throws IOException {
+        String id = null;
+        String message = "";
+        Map<String, String> tags = new HashMap<>();
+        Object[] sort = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("_id".equals(field)) {
+                id = parser.getValueAsString();
+            } else if ("_source".equals(field) && token == JsonToken.START_OBJECT) {
+                message = readSource(parser, tags);
+            } else if ("sort".equals(field) && token == JsonToken.START_ARRAY) {
+                sort = readSort(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new LogHit(id, message, tags, sort);
+    }
+
+    /* Reads _source filling the tags, returns the message */
+    private String readSource(JsonParser parser, Map<String, String> tags) throws IOException {
+        String message = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            String value = readSourceField(parser, field, token, tags);
+            if (value != null) message = value;
+        }
+        return message;
+    }
+
+    /* Reads a field of _source: returns its value if it is the message, fills the tags if it is tags, skips anything else */
+    private String readSourceField(JsonParser parser, String field, JsonToken token, Map<String, String> tags) throws IOException {
+        if ("message".equals(field) && token.isScalarValue()) {
+            return parser.getValueAsString("");
+        } else if ("tags".equals(field) && token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String tag = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                    tags.put(tag, parser.getValueAsString());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else {
+            parser.skipChildren();
+        }
+        return null;
+    }
+
+    private Object[] readSort(JsonParser parser) throws IOException {
+        List<Object> values = new ArrayList<>(2);
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token.isNumeric()) values.add(parser.getNumberValue());
+            else if (token == JsonToken.VALUE_NULL) values.add(null);
+            else if (token.isScalarValue()) values.add(parser.getValueAsString());
+            else parser.skipChildren();
+        }
+        return values.toArray();
+    }
+}
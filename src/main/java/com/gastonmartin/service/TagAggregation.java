@@ -0,0 +1,126 @@
+package com.gastonmartin.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.gastonmartin.model.Ranking;
+import com.gastonmartin.model.SearchQuery;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+
+import static com.gastonmartin.service.ElasticCursor.MAPPER;
+import static com.gastonmartin.service.ElasticCursor.PATH_PREFIX;
+
+/**
+ * Ranks all the documents of a search by tags.source and tags.scope with terms + sum aggregations, so
+ * elasticsearch returns the rankings of the whole population (not just the downloaded sample) in one
+ * small response. Only the message rankings need the documents, to apply the regular expressions.
+ */
+class TagAggregation {
+
+    /* Size of the message in UTF-8 when there is no numeric field with it, same as Utils.utf8Length */
+    private static final String BYTES_SCRIPT = String.join("\n",
+            "String m = params._source.message;",
+            "if (m == null) return 0;",
+            "int length = m.length();",
+            "long bytes = length;",
+            "for (int i = 0; i < length; i++) {",
+            "  char c = m.charAt(i);",
+            "  if (c < 0x80) continue;",
+            "  if (c < 0x800) { bytes++; }",
+            "  else if (Character.isSurrogate(c)) {",
+            "    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(m.charAt(i + 1))) { bytes += 2; i++; }",
+            "  } else { bytes += 2; }",
+            "}",
+            "return bytes;");
+
+    private final RestClient client;
+    private final String sourceField;
+    private final String scopeField;
+    private final String bytesField;
+    private final int size;
+
+    /**
+     * @param client the shared client
+     * @param sourceField keyword field of tags.source, i.e. "tags.source.keyword"
+     * @param scopeField keyword field of tags.scope, i.e. "tags.scope.keyword"
+     * @param bytesField numeric field with the size of the message, blank to compute it with a script
+     * @param size max number of sources and scopes returned
+     */
+    TagAggregation(RestClient client, String sourceField, String scopeField, String bytesField, int size) {
+        this.client = client;
+        this.sourceField = sourceField;
+        this.scopeField = scopeField;
+        this.bytesField = bytesField;
+        this.size = size;
+    }
+
+    /**
+     * Sends the aggregations of a query
+     * @param query the index and terms (page size, sort and slices are ignored)
+     * @return a LogAggregator with only the source and scope rankings and the totals of lines and original bytes
+     * @throws IOException on communication errors with elasticsearch
+     */
+    LogAggregator aggregate(SearchQuery query) throws IOException {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("size", 0);
+        body.put("track_total_hits", true);
+        body.set("query", ElasticCursor.queryNode(query));
+        ObjectNode aggs = body.putObject("aggs");
+        aggs.putObject("bytes").set("sum", bytes());
+        aggs.set("by_source", terms(sourceField, "NO_SOURCE"));
+        aggs.set("by_scope", terms(scopeField, "NO_SCOPE"));
+
+        String endpoint = String.format("%s/%s/_search", PATH_PREFIX, query.getIndex());
+        if (query.isProjected()) endpoint += "?filter_path=hits.total,aggregations";
+        Request request = new Request("POST", endpoint);
+        request.setEntity(new NStringEntity(MAPPER.writeValueAsString(body), ContentType.APPLICATION_JSON));
+        Response response = client.performRequest(request);
+        JsonNode root = MAPPER.readTree(response.getEntity().getContent());
+
+        // Elastic < 7 devuelve un numero, 7+ devuelve {"value": n, "relation": "eq"}
+        JsonNode total = root.path("hits").path("total");
+        long lines = total.isNumber() ? total.asLong() : total.path("value").asLong();
+        JsonNode aggregations = root.path("aggregations");
+
+        LogAggregator result = new LogAggregator();
+        result.addTotals(lines, (long) aggregations.path("bytes").path("value").asDouble(), 0L);
+        readBuckets(aggregations.path("by_source"), sourceField, result.getBySource());
+        readBuckets(aggregations.path("by_scope"), scopeField, result.getByScope());
+        return result;
+    }
+
+    private ObjectNode terms(String field, String missing) {
+        ObjectNode agg = MAPPER.createObjectNode();
+        agg.putObject("terms").put("field", field).put("size", size).put("missing", missing);
+        agg.putObject("aggs").putObject("bytes").set("sum", bytes());
+        return agg;
+    }
+
+    private ObjectNode bytes() {
+        ObjectNode sum = MAPPER.createObjectNode();
+        if (StringUtils.isNotBlank(bytesField)) {
+            sum.put("field", bytesField);
+        } else {
+            sum.putObject("script").put("source", BYTES_SCRIPT);
+        }
+        return sum;
+    }
+
+    private void readBuckets(JsonNode terms, String field, Ranking ranking) {
+        for (JsonNode bucket : terms.path("buckets")) {
+            ranking.add(bucket.path("key").asText(), bucket.path("doc_count").asLong(),
+                    (long) bucket.path("bytes").path("value").asDouble());
+        }
+        long others = terms.path("sum_other_doc_count").asLong();
+        if (others > 0) {
+            System.err.println(String.format("WARN: %,d documents belong to values of %s beyond the first %d, they are not ranked",
+                    others, field, size));
+        }
+    }
+}
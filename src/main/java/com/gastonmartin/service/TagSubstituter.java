@@ -0,0 +1,187 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.TagAction;
+import com.gastonmartin.model.Tags;
+import com.gastonmartin.util.Utils;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Replaces the values of known tags inside a message in a single pass.
+ * The message is scanned once looking for <code>[name:value]</code> segments (with optional blanks
+ * around name, colon and value). When the name is in the action table and the value is exactly the
+ * one in the document tags, the segment is rewritten as per its {@link TagAction}.
+ * Only the first matching segment of each tag is replaced.
+ * Instances are thread safe, each thread writes into its own reusable buffer.
+ */
+public class TagSubstituter {
+
+    private final String[] names;
+    private final TagAction[] actions;
+
+    /* Precomputed uppercase names for DISMISS */
+    private final String[] upperNames;
+
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * Builds the action table from {@link Tags#DISMISS} and {@link Tags#UNDIFERENTIATE}
+     */
+    public TagSubstituter() {
+        this(Tags.DISMISS, Tags.UNDIFERENTIATE);
+    }
+
+    public TagSubstituter(String[] dismiss, String[] undiferentiate) {
+        int size = dismiss.length + undiferentiate.length;
+        names = new String[size];
+        actions = new TagAction[size];
+        upperNames = new String[size];
+        int i = 0;
+        for (String tag : dismiss) {
+            names[i] = tag;
+            actions[i++] = TagAction.DISMISS;
+        }
+        for (String tag : undiferentiate) {
+            names[i] = tag;
+            actions[i++] = TagAction.GENERALIZE;
+        }
+        for (i = 0; i < size; i++) {
+            upperNames[i] = names[i].toUpperCase();
+        }
+        scratch = ThreadLocal.withInitial(() -> new Scratch(size));
+    }
+
+    /**
+     * @return the names of all the tags this substituter acts on
+     */
+    public String[] getTagNames() {
+        return names.clone();
+    }
+
+    /**
+     * Given a message and a way to obtain the tag values of its document, replaces the tag segments
+     * @param message the log message
+     * @param tagValues returns the value of a tag given its name (or null if absent)
+     * @return the message with tag values replaced, or the same message if nothing was replaced
+     */
+    public String substitute(String message, Function<String, String> tagValues) {
+        Scratch s = scratch.get();
+        StringBuilder out = s.buffer;
+        out.setLength(0);
+        if (++s.stamp == 0) {
+            Arrays.fill(s.replaced, 0);
+            s.stamp = 1;
+        }
+
+        int copied = 0;
+        int open = message.indexOf('[');
+        while (open >= 0) {
+            int end = matchSegment(message, open, tagValues, s);
+            if (end < 0) {
+                open = message.indexOf('[', open + 1);
+                continue;
+            }
+            int tag = s.matchedTag;
+            out.append(message, copied, open).append('[').append(names[tag]).append(':');
+            if (actions[tag] == TagAction.DISMISS) {
+                out.append(upperNames[tag]);
+            } else if (Utils.isNumeric(s.matchedValue)) {
+                appendGeneralizedNumber(out, s.matchedValue);
+            } else {
+                appendGeneralizedWord(out, s.matchedValue);
+            }
+            out.append(']');
+            copied = end;
+            open = message.indexOf('[', end);
+        }
+
+        if (copied == 0) return message;
+        out.append(message, copied, message.length());
+        return out.toString();
+    }
+
+    /**
+     * Tries to match <code>\[ ?name ?: ?value ?\]</code> at position <code>open</code>
+     * @return the position after the closing bracket, or -1 if there is no match
+     */
+    private int matchSegment(String message, int open, Function<String, String> tagValues, Scratch s) {
+        int len = message.length();
+        int p = open + 1;
+        if (p < len && message.charAt(p) == ' ') p++;
+
+        int nameStart = p;
+        while (p < len) {
+            char c = message.charAt(p);
+            if (c == ' ' || c == ':' || c == '[' || c == ']') break;
+            p++;
+        }
+        int tag = findTag(message, nameStart, p - nameStart);
+        if (tag < 0 || s.replaced[tag] == s.stamp) return -1;
+
+        if (p < len && message.charAt(p) == ' ') p++;
+        if (p >= len || message.charAt(p) != ':') return -1;
+        p++;
+
+        String value = tagValues.apply(names[tag]);
+        if (value == null || value.isEmpty()) return -1;
+
+        // Los blancos opcionales pueden ser parte del valor, pruebo primero consumiendolos
+        int end = -1;
+        if (p < len && message.charAt(p) == ' ') end = matchValue(message, p + 1, value);
+        if (end < 0) end = matchValue(message, p, value);
+        if (end < 0) return -1;
+
+        s.replaced[tag] = s.stamp;
+        s.matchedTag = tag;
+        s.matchedValue = value;
+        return end;
+    }
+
+    /* Matches "value ?]" at position p */
+    private static int matchValue(String message, int p, String value) {
+        if (!message.startsWith(value, p)) return -1;
+        p += value.length();
+        if (p < message.length() && message.charAt(p) == ' ' && p + 1 < message.length() && message.charAt(p + 1) == ']') p++;
+        if (p >= message.length() || message.charAt(p) != ']') return -1;
+        return p + 1;
+    }
+
+    private int findTag(String message, int start, int length) {
+        if (length == 0) return -1;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == length && message.regionMatches(start, names[i], 0, length)) return i;
+        }
+        return -1;
+    }
+
+    /* Same as Utils.generalizeNumber, without regex */
+    private static void appendGeneralizedNumber(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            out.append(c >= '0' && c <= '9' ? '9' : c);
+        }
+    }
+
+    /* Same as Utils.generalize, without regex */
+    private static void appendGeneralizedWord(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean word = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            out.append(word ? 'x' : c);
+        }
+    }
+
+    private static class Scratch {
+        final StringBuilder buffer = new StringBuilder(256);
+        /* replaced[tag] == stamp when the tag was already replaced in the current message */
+        final int[] replaced;
+        int stamp;
+        int matchedTag;
+        String matchedValue;
+
+        Scratch(int tags) {
+            replaced = new int[tags];
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.LogHit;
+import com.gastonmartin.util.Utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of transformed messages: in production many lines are byte identical raw messages (health checks,
+ * cache hits...) and transforming each one again is most of the work. The key is the raw message plus the values
+ * of the tags replaced inside messages (see {@link TagSubstituter}) that appear in it, the only ones that can change
+ * the result. Each entry remembers the {@link ExpressionSet} it was transformed with, so when expressions.txt is
+ * reloaded the entries of the previous rules no longer match and are transformed again. The fingerprint of each
+ * template is kept next to it, so a repeated message is not hashed again to rank it. Least recently used entries
+ * are evicted. Split in segments so the transform workers rarely wait on
+ * each other. Thread safe.
+ */
+class TransformCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final String[] tagNames;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries max number of messages kept
+     * @param tagNames the tags replaced inside the messages
+     */
+    TransformCache(int maxEntries, String[] tagNames) {
+        this.tagNames = tagNames;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS));
+        }
+    }
+
+    /**
+     * @param hit a hit
+     * @param expressions the expressions the transform applies, entries of other expressions are stale
+     * @param transform transforms the message of a hit with those expressions when it is not cached
+     * @return the transformed message of the hit and its fingerprint
+     */
+    Template get(LogHit hit, ExpressionSet expressions, Function<LogHit, String> transform) {
+        Key key = new Key(hit.getMessage(), relevantTags(hit));
+        Segment segment = segments[(key.hash & 0x7fffffff) % SEGMENTS];
+        Template cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        // Una entrada de antes de recargar expressions.txt se vuelve a transformar y se reemplaza
+        if (cached != null && cached.expressions == expressions) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        // Se transforma fuera del lock, dos workers pueden calcular el mismo mensaje a la vez
+        Template template = new Template(expressions, transform.apply(hit));
+        synchronized (segment) {
+            segment.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * @return lookups that found the message
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups that had to transform the message
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /* Names and values of the tags whose value appears in the message, null if none */
+    private String relevantTags(LogHit hit) {
+        StringBuilder relevant = null;
+        String message = hit.getMessage();
+        for (String tag : tagNames) {
+            String value = hit.getTag(tag);
+            // Un tag solo se reemplaza si su valor esta en el mensaje
+            if (value == null || !message.contains(value)) continue;
+            if (relevant == null) relevant = new StringBuilder();
+            relevant.append(tag).append('=').append(value).append('\n');
+        }
+        return relevant == null ? null : relevant.toString();
+    }
+
+    private static final class Key {
+        private final String message;
+        private final String tags;
+        private final int hash;
+
+        Key(String message, String tags) {
+            this.message = message;
+            this.tags = tags;
+            this.hash = 31 * message.hashCode() + (tags == null ? 0 : tags.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && message.equals(other.message)
+                    && (tags == null ? other.tags == null : tags.equals(other.tags));
+        }
+    }
+
+    /**
+     * A transformed message, its fingerprint ({@link Utils#hash64(String)}) and the expressions it was transformed with
+     */
+    static final class Template {
+        private final ExpressionSet expressions;
+        private final String template;
+        private final long fingerprint;
+
+        Template(ExpressionSet expressions, String template) {
+            this.expressions = expressions;
+            this.template = template;
+            this.fingerprint = Utils.hash64(template);
+        }
+
+        String getTemplate() {
+            return template;
+        }
+
+        long getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    /* LRU: LinkedHashMap in access order dropping the eldest entry. Not thread safe, callers lock the segment */
+    private static final class Segment {
+        private final int maxEntries;
+        private final LinkedHashMap<Key, Template> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        Template get(Key key) {
+            return entries.get(key);
+        }
+
+        void put(Key key, Template template) {
+            entries.put(key, template);
+            if (entries.size() > maxEntries) {
+                Iterator<Key> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
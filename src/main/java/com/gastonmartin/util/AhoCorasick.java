@@ -0,0 +1,118 @@
+package com.gastonmartin.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton for finding, in a single pass over a text, which of a set of keywords
+ * appear in it. The automaton is built once as a dense transition table over the alphabet of the
+ * keywords (any other char sends the automaton back to the root), so scanning is one array lookup per char.
+ * Instances are immutable and can be shared between threads.
+ */
+public class AhoCorasick {
+
+    /* Index of chars outside the keywords alphabet */
+    private static final int OTHER = 0;
+
+    private final int width;
+    /* Class of each char (the keywords alphabet is small, so a char fits any class index) */
+    private final char[] classes = new char[Character.MAX_VALUE + 1];
+
+    /* transitions[state * width + charClass] = next state */
+    private final int[] transitions;
+
+    /* Keywords recognized when reaching each state (including those inherited through failure links) */
+    private final int[][] outputs;
+
+    /**
+     * Builds the automaton
+     * @param keywords the (non empty) Strings to look for. Their position in the list is their id.
+     */
+    public AhoCorasick(List<String> keywords) {
+        char alphabet = 1;
+        for (String keyword : keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (classes[c] == OTHER) classes[c] = alphabet++;
+            }
+        }
+        width = alphabet;
+
+        // Trie
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> found = new ArrayList<>();
+        trie.add(new int[width]);
+        found.add(new ArrayList<>());
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int cls = charClass(keyword.charAt(i));
+                if (trie.get(state)[cls] == 0) {
+                    trie.get(state)[cls] = trie.size();
+                    trie.add(new int[width]);
+                    found.add(new ArrayList<>());
+                }
+                state = trie.get(state)[cls];
+            }
+            found.get(state).add(k);
+        }
+
+        // Failure links (BFS) folded into a complete transition table
+        int states = trie.size();
+        transitions = new int[states * width];
+        int[] fail = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int cls = 0; cls < width; cls++) {
+            int next = trie.get(0)[cls];
+            transitions[cls] = next;
+            if (next != 0) queue.add(next);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            found.get(state).addAll(found.get(fail[state]));
+            for (int cls = 0; cls < width; cls++) {
+                int next = trie.get(state)[cls];
+                if (next != 0) {
+                    fail[next] = transitions[fail[state] * width + cls];
+                    transitions[state * width + cls] = next;
+                    queue.add(next);
+                } else {
+                    transitions[state * width + cls] = transitions[fail[state] * width + cls];
+                }
+            }
+        }
+
+        outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> ids = found.get(s);
+            if (!ids.isEmpty()) {
+                outputs[s] = ids.stream().mapToInt(Integer::intValue).distinct().toArray();
+            }
+        }
+    }
+
+    /**
+     * Scans the text once and sets in <code>matched</code> the id of every keyword found
+     * (matched is not cleared first)
+     * @param text the text to scan
+     * @param matched a BitSet where to mark found keyword ids
+     */
+    public void scan(CharSequence text, BitSet matched) {
+        int state = 0;
+        for (int i = 0, len = text.length(); i < len; i++) {
+            state = transitions[state * width + charClass(text.charAt(i))];
+            int[] out = outputs[state];
+            if (out != null) {
+                for (int id : out) matched.set(id);
+            }
+        }
+    }
+
+    private int charClass(char c) {
+        return classes[c];
+    }
+}
@@ -0,0 +1,81 @@
+package com.gastonmartin.util;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression of a local file, detected by its magic number (not by its name)
+ */
+public enum Compression {
+    NONE,
+    /* Single or multi-member gzip (RFC 1952) */
+    GZIP,
+    /* Zstandard frames (RFC 8878) */
+    ZSTD;
+
+    /* Compressed bytes are read in blocks of this size */
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    /**
+     * @param file a local file
+     * @return the compression of the file
+     * @throws IOException if the file can not be read
+     */
+    public static Compression detect(Path file) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // Lee los primeros 4 bytes
+            }
+        }
+        byte[] b = magic.array();
+        if (magic.position() >= 2 && b[0] == (byte) 0x1f && b[1] == (byte) 0x8b) return GZIP;
+        if (magic.position() == 4 && b[0] == (byte) 0x28 && b[1] == (byte) 0xb5 && b[2] == (byte) 0x2f && b[3] == (byte) 0xfd) return ZSTD;
+        return NONE;
+    }
+
+    /**
+     * @param file a local file
+     * @return the name of the file without the extension of its compression, i.e. "app.ndjson" for "app.ndjson.gz"
+     */
+    public static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        for (String suffix : new String[]{".gz", ".gzip", ".zst", ".zstd"}) {
+            if (name.toLowerCase().endsWith(suffix)) return name.substring(0, name.length() - suffix.length());
+        }
+        return name;
+    }
+
+    /**
+     * Opens a region of a file, decompressing it on the fly
+     * @param file the file
+     * @param start offset of the region, the beginning of a gzip member or zstd frame when compressed
+     * @param end offset after the region
+     * @return the decoded bytes of the region
+     * @throws IOException if the file can not be opened
+     */
+    public InputStream open(Path file, long start, long end) throws IOException {
+        InputStream raw = new FileRegionInputStream(file, start, end);
+        try {
+            switch (this) {
+                case GZIP:
+                    return new GZIPInputStream(raw, BUFFER_BYTES);
+                case ZSTD:
+                    return new ZstdInputStream(new BufferedInputStream(raw, BUFFER_BYTES));
+                default:
+                    return new BufferedInputStream(raw, BUFFER_BYTES);
+            }
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+}
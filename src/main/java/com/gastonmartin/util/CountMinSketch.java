@@ -0,0 +1,103 @@
+package com.gastonmartin.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Count-Min sketch (Cormode and Muthukrishnan): {@code depth} rows of {@code width} counters, each key adds its
+ * weight to one counter per row and its estimate is the smallest of them. The estimate is never below the real
+ * total and, with probability 1 - e^-depth, at most e / width * (sum of all weights) above it.
+ * Sketches with the same dimensions can be merged. Not thread safe.
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    /* Power of two, indexes are masked */
+    private final int width;
+    private final long[] table;
+    private long total;
+
+    /**
+     * @param width counters per row (rounded up to a power of two)
+     * @param depth number of rows
+     */
+    public CountMinSketch(int width, int depth) {
+        this.width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.depth = depth;
+        this.table = new long[this.width * depth];
+    }
+
+    /**
+     * Restores a sketch saved with {@link #toBytes()}
+     * @param bytes the dimensions, the total and the counters
+     * @return the sketch
+     */
+    public static CountMinSketch fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CountMinSketch sketch = new CountMinSketch(buffer.getInt(), buffer.getInt());
+        sketch.total = buffer.getLong();
+        buffer.asLongBuffer().get(sketch.table);
+        return sketch;
+    }
+
+    /**
+     * Adds a weight to a key
+     * @param key the key
+     * @param weight a non negative weight
+     */
+    public void add(String key, long weight) {
+        // Las dos mitades del hash dan el indice de cada fila (Kirsch-Mitzenmacher)
+        long hash = Utils.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            table[row * width + ((h1 + row * h2) & (width - 1))] += weight;
+        }
+        total += weight;
+    }
+
+    /**
+     * @param key the key
+     * @return an upper bound of the total weight of the key
+     */
+    public long estimate(String key) {
+        long hash = Utils.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, table[row * width + ((h1 + row * h2) & (width - 1))]);
+        }
+        return min;
+    }
+
+    /**
+     * @return the max overestimate (with probability 1 - e^-depth): e / width * sum of all weights
+     */
+    public long errorBound() {
+        return (long) Math.ceil(Math.E / width * total);
+    }
+
+    /**
+     * Adds another sketch with the same dimensions into this one
+     * @param other a sketch of another part of the stream
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Count-Min sketches of different dimensions can not be merged");
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        total += other.total;
+    }
+
+    /**
+     * @return the dimensions, the total and the counters, to save the sketch (see {@link #fromBytes(byte[])})
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 8 * table.length);
+        buffer.putInt(width).putInt(depth).putLong(total);
+        buffer.asLongBuffer().put(table);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,57 @@
+package com.gastonmartin.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * InputStream over a region of a file, read with positional reads on its own channel so
+ * several regions of the same file can be read concurrently. Regions can be bigger than 2GB.
+ */
+public class FileRegionInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    /**
+     * @param file the file
+     * @param start offset of the first byte of the region
+     * @param end offset after the last byte of the region
+     * @throws IOException if the file can not be opened
+     */
+    public FileRegionInputStream(Path file, long start, long end) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position >= end) return -1;
+        int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+        if (read < 0) return -1;
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
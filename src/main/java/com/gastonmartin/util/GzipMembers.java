@@ -0,0 +1,144 @@
+package com.gastonmartin.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits a multi-member gzip file (i.e. files written by tools that flush one member at a time) in regions
+ * made of whole members, so each region can be decompressed by a different thread.
+ * A member does not record its compressed length, so boundaries are found by looking for a member header
+ * in the first SEARCH_BYTES after every chunkBytes and confirming it by inflating the first bytes that follow:
+ * they must decode without errors into text (line breaks and no NULs). When there is no member there the rest of
+ * the file is a single region, so a single-member file costs the read of one window and members bigger than
+ * the window are not split.
+ * Regions are decoded with {@link java.util.zip.GZIPInputStream}, which checks the CRC of every member, and a
+ * region whose last member does not end exactly at the end of the region fails with an EOFException,
+ * so a wrong boundary makes the analysis fail instead of producing wrong results.
+ */
+public class GzipMembers {
+
+    /* Bytes scanned at once when looking for a header */
+    private static final int WINDOW_BYTES = 1 << 16;
+
+    /* Bytes after each target where a header is looked for */
+    private static final int SEARCH_BYTES = 1 << 20;
+
+    /* Compressed bytes read and decoded bytes required to confirm a header */
+    private static final int PROBE_INPUT_BYTES = 1 << 17;
+    private static final int PROBE_OUTPUT_BYTES = 1 << 16;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int RESERVED = 0xe0;
+
+    /**
+     * @param file a gzip file
+     * @param chunkBytes approximate compressed size of each region
+     * @return {start, end} offsets of each region, in order. A single region when the file has only one member
+     * or no member starts near the first target.
+     * @throws IOException if the file can not be read
+     */
+    public static List<long[]> split(Path file, long chunkBytes) throws IOException {
+        List<long[]> regions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0L;
+            long target = chunkBytes;
+            while (target < size) {
+                long boundary = findMember(channel, target, Math.min(target + SEARCH_BYTES, size));
+                // Ningun miembro empieza cerca: un solo miembro (o miembros muy grandes), no se sigue buscando
+                if (boundary < 0) break;
+                regions.add(new long[]{start, boundary});
+                start = boundary;
+                target = boundary + chunkBytes;
+            }
+            regions.add(new long[]{start, size});
+        }
+        return regions;
+    }
+
+    /* Offset of the first confirmed member header in [from, to), -1 if none */
+    private static long findMember(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(WINDOW_BYTES);
+        byte[] b = window.array();
+        long position = from;
+        while (position < to) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read < 4) return -1L;
+            for (int i = 0; i + 3 < read && position + i < to; i++) {
+                if (b[i] == (byte) 0x1f && b[i + 1] == (byte) 0x8b && b[i + 2] == 8 && (b[i + 3] & RESERVED) == 0
+                        && confirm(channel, position + i)) {
+                    return position + i;
+                }
+            }
+            // Solapa 3 bytes para no perder un header partido entre dos ventanas
+            position += read - 3;
+        }
+        return -1L;
+    }
+
+    /* Whether the member that seems to start at offset decodes into text */
+    private static boolean confirm(FileChannel channel, long offset) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(PROBE_INPUT_BYTES);
+        int read = channel.read(head, offset);
+        byte[] in = head.array();
+        int header = headerLength(in, read);
+        if (header < 0) return false;
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(in, header, read - header);
+            byte[] out = new byte[PROBE_OUTPUT_BYTES];
+            int total = 0;
+            while (total < out.length && !inflater.finished()) {
+                int n = inflater.inflate(out, total, out.length - total);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                total += n;
+            }
+            boolean lineBreak = false;
+            for (int i = 0; i < total; i++) {
+                if (out[i] == 0) return false;
+                if (out[i] == '\n') lineBreak = true;
+            }
+            return total > 0 && (lineBreak || inflater.finished());
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /* Length of the member header at the beginning of b, -1 if it is not a valid header */
+    private static int headerLength(byte[] b, int length) {
+        if (length < 10) return -1;
+        int flags = b[3] & 0xff;
+        int os = b[9] & 0xff;
+        if ((flags & RESERVED) != 0 || (os > 13 && os != 255)) return -1;
+
+        int p = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (p + 2 > length) return -1;
+            p += 2 + ((b[p] & 0xff) | (b[p + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            while (p < length && b[p] != 0) p++;
+            p++;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (p < length && b[p] != 0) p++;
+            p++;
+        }
+        if ((flags & FHCRC) != 0) p += 2;
+        return p < length ? p : -1;
+    }
+}
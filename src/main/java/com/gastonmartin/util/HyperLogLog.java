@@ -0,0 +1,106 @@
+package com.gastonmartin.util;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter (Flajolet et al.): 2^precision one byte registers keep the longest run of leading
+ * zeros seen among the hashes routed to each of them, which estimates how many distinct values were added with
+ * a standard error of 1.04 / sqrt(2^precision), in fixed memory whatever the number of values.
+ * Counters with the same precision can be merged. Not thread safe.
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision between 4 and 16: 2^precision bytes of memory, i.e. 12 is 4KB and 1.6% of error
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) throw new IllegalArgumentException("precision must be between 4 and 16: " + precision);
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Restores a counter saved with {@link #toBytes()}
+     * @param registers the registers (their number must be a power of two)
+     * @return the counter
+     */
+    public static HyperLogLog fromBytes(byte[] registers) {
+        HyperLogLog counter = new HyperLogLog(Integer.numberOfTrailingZeros(registers.length));
+        System.arraycopy(registers, 0, counter.registers, 0, registers.length);
+        return counter;
+    }
+
+    /**
+     * @param value a value, counted once no matter how many times it is added
+     */
+    public void add(String value) {
+        addHash(Utils.hash64(value));
+    }
+
+    /**
+     * @param hash a well distributed 64 bit hash of a value
+     */
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // El bit de guarda limita el rango a 64 - precision + 1
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) registers[index] = (byte) rank;
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1.0 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // Con pocos valores el conteo lineal de registros vacios es mas preciso
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the precision, counters can only be merged with counters of the same one
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the relative standard error of the estimates, i.e. 0.016 for precision 12
+     */
+    public double standardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * Adds the values of another counter with the same precision into this one
+     * @param other a counter of other values
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("HyperLogLog counters of different precision can not be merged");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return a copy of the registers, to save the counter (see {@link #fromBytes(byte[])})
+     */
+    public byte[] toBytes() {
+        return Arrays.copyOf(registers, registers.length);
+    }
+}
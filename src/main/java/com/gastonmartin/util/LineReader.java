@@ -0,0 +1,16 @@
+package com.gastonmartin.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the lines of (a region of) a local file, whatever its encoding on disk
+ */
+public interface LineReader extends Closeable {
+
+    /**
+     * @return the next line without its line break, null when there are no more lines
+     * @throws IOException if the file can not be read or decoded
+     */
+    String readLine() throws IOException;
+}
@@ -0,0 +1,200 @@
+package com.gastonmartin.util;
+
+/**
+ * Open addressing hash table (linear probing) from long keys (i.e. message fingerprints) to a count and a sum
+ * of bytes, kept in parallel primitive arrays: adding, merging and ranking entries creates no objects.
+ * The top entries are extracted with a bounded heap instead of sorting all of them.
+ * Not thread safe.
+ */
+public class LongCountTable {
+
+    /**
+     * Receives the entries of a table, see {@link #forEach(EntryConsumer)}
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long count, long bytes);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys;
+    private long[] counts;
+    private long[] bytes;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongCountTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds lines to the entry of a key, creating it if missing
+     * @param key the key
+     * @param count number of lines
+     * @param bytes size of the lines
+     */
+    public void add(long key, long count, long bytes) {
+        int slot = slot(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            // Se mantiene la ocupacion por debajo de la mitad para que las secuencias de sondeo sean cortas
+            if (++size > (mask + 1) >> 1) {
+                grow();
+                slot = slot(key);
+            }
+        }
+        counts[slot] += count;
+        this.bytes[slot] += bytes;
+    }
+
+    /**
+     * Adds all the entries of another table into this one
+     * @param other another table
+     */
+    public void merge(LongCountTable other) {
+        for (int i = 0; i < other.used.length; i++) {
+            if (other.used[i]) add(other.keys[i], other.counts[i], other.bytes[i]);
+        }
+    }
+
+    /**
+     * @return the count of a key, 0 if missing
+     */
+    public long count(long key) {
+        int slot = slot(key);
+        return used[slot] ? counts[slot] : 0L;
+    }
+
+    /**
+     * @return the bytes of a key, 0 if missing
+     */
+    public long bytes(long key) {
+        int slot = slot(key);
+        return used[slot] ? bytes[slot] : 0L;
+    }
+
+    /**
+     * @return number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Visits all the entries, in no particular order
+     * @param action receives the key, count and bytes of each entry
+     */
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) action.accept(keys[i], counts[i], bytes[i]);
+        }
+    }
+
+    /**
+     * @param n max number of keys
+     * @return the keys of the n entries with the highest count, highest first
+     */
+    public long[] topByCount(int n) {
+        return top(n, counts);
+    }
+
+    /**
+     * @param n max number of keys
+     * @return the keys of the n entries with the highest bytes, highest first
+     */
+    public long[] topByBytes(int n) {
+        return top(n, bytes);
+    }
+
+    /* Min-heap of the slots of the n highest values: each slot replaces the root if bigger, then pops in order */
+    private long[] top(int n, long[] values) {
+        n = Math.min(n, size);
+        int[] heap = new int[n];
+        int heapSize = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) continue;
+            if (heapSize < n) {
+                heap[heapSize] = i;
+                siftUp(heap, heapSize++, values);
+            } else if (n > 0 && values[i] > values[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, heapSize, values);
+            }
+        }
+        long[] top = new long[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            top[i] = keys[heap[0]];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, values);
+        }
+        return top;
+    }
+
+    private static void siftUp(int[] heap, int index, long[] values) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (values[heap[parent]] <= values[slot]) break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    }
+
+    private static void siftDown(int[] heap, int heapSize, long[] values) {
+        if (heapSize == 0) return;
+        int slot = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && values[heap[child + 1]] < values[heap[child]]) child++;
+            if (values[slot] <= values[heap[child]]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    }
+
+    /* Slot of the key, or the free slot where it goes */
+    private int slot(long key) {
+        int slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Fingerprints of colliding messages are consecutive, spread them over the table */
+    private static int mix(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldBytes = bytes;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length << 1);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            int slot = slot(oldKeys[i]);
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            counts[slot] = oldCounts[i];
+            bytes[slot] = oldBytes[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        bytes = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,107 @@
+package com.gastonmartin.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the UTF-8 lines of a region of a file mapped in memory, so the OS page cache is read
+ * directly with no intermediate copies nor read() calls.
+ * Regions are obtained with {@link #split(Path, long)}: each one starts at the beginning of a line and
+ * ends right after a line break (or at the end of the file), so regions can be read independently
+ * by different threads. Not thread safe, use one instance per region.
+ */
+public class MappedLineReader implements LineReader {
+
+    private static final int PROBE_SIZE = 8192;
+
+    private final MappedByteBuffer buffer;
+
+    /* Bytes of the current line, grows as needed */
+    private byte[] line = new byte[512];
+
+    /**
+     * Maps a region of a file. The file is not kept open, the mapping stays valid until garbage collected.
+     * @param file the file
+     * @param start offset of the first byte of the region
+     * @param end offset after the last byte of the region
+     * @throws IOException if the file can not be mapped
+     */
+    public MappedLineReader(Path file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+    }
+
+    /**
+     * @return the next line without its line break (\n or \r\n), null at the end of the region
+     */
+    @Override
+    public String readLine() {
+        if (!buffer.hasRemaining()) return null;
+        int length = 0;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') break;
+            if (length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = b;
+        }
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Nothing to release, the mapping is released when garbage collected
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Splits a file in regions of about {@code chunkBytes} bytes that end on a line break
+     * @param file the file
+     * @param chunkBytes approximate size of each region (a mapping can not exceed 2GB)
+     * @return {start, end} offsets of each region, in order
+     * @throws IOException if the file can not be read
+     */
+    public static List<long[]> split(Path file, long chunkBytes) throws IOException {
+        if (chunkBytes <= 0 || chunkBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("chunkBytes must be between 1 and 2GB: " + chunkBytes);
+        }
+        List<long[]> regions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+            long start = 0L;
+            while (start < size) {
+                long end = Math.min(start + chunkBytes, size);
+                // Avanza hasta despues del siguiente fin de linea
+                boolean found = false;
+                while (end < size && !found) {
+                    probe.clear();
+                    int read = channel.read(probe, end);
+                    if (read <= 0) {
+                        end = size;
+                        break;
+                    }
+                    int i = 0;
+                    while (i < read && probe.get(i) != '\n') i++;
+                    found = i < read;
+                    end += found ? i + 1 : read;
+                }
+                // Una sola linea mas larga que 2GB no se puede mapear
+                if (end - start > Integer.MAX_VALUE) throw new IOException("Line too long in " + file + " at " + start);
+                regions.add(new long[]{start, end});
+                start = end;
+            }
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,215 @@
+package com.gastonmartin.util;
+
+/**
+ * Char level implementation of {@link Utils#generalizeNumbersInMessage(String, int, String)}.
+ * Produces exactly the same output but walks the message once, writing into a reusable per thread
+ * buffer, instead of splitting, joining and running several regexes for every word.
+ * <p>
+ * The rules are the same as in the original method:
+ * <ul>
+ *     <li>The message is tokenized by blanks (trailing separators are dropped, as String.split does)</li>
+ *     <li>Numbers (ignoring commas and blanks, as per NumberUtils.isCreatable) with a decimal point
+ *     get all their digits replaced by 9's</li>
+ *     <li>Other numbers get their digits replaced by 9's only if they have at least minDigits digits</li>
+ *     <li>Words like userid:12345 are tokenized again by ':', and words like id-12345 by '-'</li>
+ * </ul>
+ */
+public class NumberGeneralizer {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private NumberGeneralizer() {
+    }
+
+    /**
+     * Given a whole line of message generalize its numbers
+     * @param message The whole line of the message
+     * @param minDigits Minimun digits to generalize (i.e. 2 to avoid replacing single digits)
+     * @return a new String with numbers generalized
+     */
+    public static String generalize(String message, int minDigits) {
+        Scratch s = SCRATCH.get();
+        s.out.setLength(0);
+        generalize(message, 0, message.length(), ' ', minDigits, s);
+        return s.out.toString();
+    }
+
+    /* Equivalent to Arrays.stream(text.split(separator)).map(word -> ...).collect(joining(separator)) */
+    private static void generalize(String text, int from, int to, char separator, int minDigits, Scratch s) {
+        // split() descarta los separadores al final
+        while (to > from && text.charAt(to - 1) == separator) to--;
+        if (to == from) return;
+
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || text.charAt(i) == separator) {
+                if (start > from) s.out.append(separator);
+                generalizeWord(text, start, i, minDigits, s);
+                start = i + 1;
+            }
+        }
+    }
+
+    private static void generalizeWord(String text, int from, int to, int minDigits, Scratch s) {
+        StringBuilder out = s.out;
+        if (isNumericIgnoringComma(text, from, to, s)) {
+            int digits = 0;
+            boolean fractional = false;
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') digits++;
+                else if (c == '.') fractional = true;
+            }
+            if (fractional || digits >= minDigits) {
+                for (int i = from; i < to; i++) {
+                    char c = text.charAt(i);
+                    out.append(c >= '0' && c <= '9' ? '9' : c);
+                }
+            } else {
+                out.append(text, from, to);
+            }
+        } else if (to > from && indexOf(text, from, to, ':') >= 0 && text.charAt(to - 1) != ':') {
+            generalize(text, from, to, ':', minDigits, s);
+        } else if (to > from && text.charAt(from) != '-' && indexOf(text, from, to, '-') >= 0) {
+            generalize(text, from, to, '-', minDigits, s);
+        } else {
+            out.append(text, from, to);
+        }
+    }
+
+    private static int indexOf(String text, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    /* Same as Utils.isNumericIgnoringComma over text[from, to) without building new Strings */
+    private static boolean isNumericIgnoringComma(String text, int from, int to, Scratch s) {
+        if (s.chars.length < to - from) s.chars = new char[Math.max(to - from, 2 * s.chars.length)];
+        char[] chars = s.chars;
+        int sz = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') continue;
+            chars[sz++] = c;
+        }
+        return isCreatable(chars, sz);
+    }
+
+    /**
+     * Port of NumberUtils.isCreatable (commons-lang3 3.9) over the first <code>length</code> chars of an array
+     */
+    private static boolean isCreatable(char[] chars, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int sz = length;
+        boolean hasExp = false;
+        boolean hasDecPoint = false;
+        boolean allowSigns = false;
+        boolean foundDigit = false;
+        // deal with any possible sign up front
+        final int start = chars[0] == '-' || chars[0] == '+' ? 1 : 0;
+        if (sz > start + 1 && chars[start] == '0' && !contains(chars, length, '.')) { // leading 0, skip if is a decimal number
+            if (chars[start + 1] == 'x' || chars[start + 1] == 'X') { // leading 0x/0X
+                int i = start + 2;
+                if (i == sz) {
+                    return false; // str == "0x"
+                }
+                // checking hex (it can't be anything else)
+                for (; i < length; i++) {
+                    if ((chars[i] < '0' || chars[i] > '9')
+                        && (chars[i] < 'a' || chars[i] > 'f')
+                        && (chars[i] < 'A' || chars[i] > 'F')) {
+                        return false;
+                    }
+                }
+                return true;
+            } else if (Character.isDigit(chars[start + 1])) {
+                // leading 0, but not hex, must be octal
+                int i = start + 1;
+                for (; i < length; i++) {
+                    if (chars[i] < '0' || chars[i] > '7') {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        sz--; // don't want to loop to the last char, check it afterwords for type qualifiers
+        int i = start;
+        // loop to the next to last char or to the last char if we need another digit to
+        // make a valid number (e.g. chars[0..5] = "1234E")
+        while (i < sz || i < sz + 1 && allowSigns && !foundDigit) {
+            if (chars[i] >= '0' && chars[i] <= '9') {
+                foundDigit = true;
+                allowSigns = false;
+            } else if (chars[i] == '.') {
+                if (hasDecPoint || hasExp) {
+                    // two decimal points or dec in exponent
+                    return false;
+                }
+                hasDecPoint = true;
+            } else if (chars[i] == 'e' || chars[i] == 'E') {
+                // we've already taken care of hex.
+                if (hasExp || !foundDigit) {
+                    return false;
+                }
+                hasExp = true;
+                allowSigns = true;
+            } else if (chars[i] == '+' || chars[i] == '-') {
+                if (!allowSigns) {
+                    return false;
+                }
+                allowSigns = false;
+                foundDigit = false; // we need a digit after the E
+            } else {
+                return false;
+            }
+            i++;
+        }
+        if (i < length) {
+            if (chars[i] >= '0' && chars[i] <= '9') {
+                // no type qualifier, OK
+                return true;
+            }
+            if (chars[i] == 'e' || chars[i] == 'E') {
+                // can't have an E at the last byte
+                return false;
+            }
+            if (chars[i] == '.') {
+                if (hasDecPoint || hasExp) {
+                    // two decimal points or dec in exponent
+                    return false;
+                }
+                // single trailing decimal point after non-exponent is ok
+                return foundDigit;
+            }
+            if (!allowSigns && (chars[i] == 'd' || chars[i] == 'D' || chars[i] == 'f' || chars[i] == 'F')) {
+                return foundDigit;
+            }
+            if (chars[i] == 'l' || chars[i] == 'L') {
+                // not allowing L with an exponent or decimal point
+                return foundDigit && !hasExp && !hasDecPoint;
+            }
+            // last character is illegal
+            return false;
+        }
+        // allowSigns is true iff the val ends in 'E'
+        // found digit it to make sure weird stuff like '.' and '1E-' doesn't pass
+        return !allowSigns && foundDigit;
+    }
+
+    private static boolean contains(char[] chars, int length, char c) {
+        for (int i = 0; i < length; i++) {
+            if (chars[i] == c) return true;
+        }
+        return false;
+    }
+
+    private static class Scratch {
+        final StringBuilder out = new StringBuilder(256);
+        char[] chars = new char[64];
+    }
+}
@@ -0,0 +1,206 @@
+package com.gastonmartin.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Extracts from a java regex a set of literal strings such that <b>any line matched by the regex
+ * must contain at least one of them</b>. Used to skip regexes that cannot match a line.
+ * The analysis is conservative: whenever the regex uses a construct that is not understood
+ * (inline flags, lookarounds, back references, \Q..\E, etc.) no literal is returned.
+ */
+public class RegexLiterals {
+
+    private final String regex;
+    private int pos;
+
+    private RegexLiterals(String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Given a regex (as accepted by Pattern.compile with default flags) returns the alternatives
+     * of its best required literal, i.e "[event:multiPost] KEY:" for "(\[event:multiPost\] KEY:)(\S+)"
+     * @param regex a valid java regular expression
+     * @return a List of literals (any of them must be present) or null if none could be extracted
+     */
+    public static List<String> requiredLiterals(String regex) {
+        try {
+            RegexLiterals parser = new RegexLiterals(regex);
+            List<String> literals = parser.parseAlternation();
+            if (parser.pos != regex.length()) return null; // ')' sin abrir, no deberia pasar
+            return literals;
+        } catch (UnsupportedConstructException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private List<String> parseAlternation() {
+        List<String> result = parseSequence();
+        boolean alternation = false;
+        List<String> union = new ArrayList<>();
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            if (!alternation) {
+                alternation = true;
+                if (result == null) union = null;
+                else union.addAll(result);
+            }
+            List<String> branch = parseSequence();
+            if (branch == null || union == null) union = null;
+            else union.addAll(branch);
+        }
+        return alternation ? union : result;
+    }
+
+    private List<String> parseSequence() {
+        StringBuilder run = new StringBuilder();
+        List<String> best = null;
+
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '|' || c == ')') break;
+
+            if (c == '(') {
+                best = better(best, flush(run));
+                pos++;
+                skipGroupPrefix();
+                List<String> inner = parseAlternation();
+                if (regex.charAt(pos) != ')') throw new UnsupportedConstructException();
+                pos++;
+                if (parseQuantifierMin() != 0) best = better(best, inner);
+            } else if (c == '[') {
+                best = better(best, flush(run));
+                skipCharacterClass();
+                parseQuantifierMin();
+            } else if (c == '.') {
+                best = better(best, flush(run));
+                pos++;
+                parseQuantifierMin();
+            } else if (c == '^' || c == '$') {
+                best = better(best, flush(run));
+                pos++;
+            } else if (c == '\\') {
+                char n = regex.charAt(pos + 1);
+                pos += 2;
+                if (!Character.isLetterOrDigit(n)) {
+                    best = literal(n, run, best);
+                } else {
+                    switch (n) {
+                        case 't': best = literal('\t', run, best); break;
+                        case 'n': best = literal('\n', run, best); break;
+                        case 'r': best = literal('\r', run, best); break;
+                        case 'f': best = literal('\f', run, best); break;
+                        case 'a': best = literal('\u0007', run, best); break;
+                        case 'e': best = literal('\u001B', run, best); break;
+                        case 'd': case 'D': case 'w': case 'W': case 's': case 'S':
+                        case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+                            best = better(best, flush(run));
+                            parseQuantifierMin();
+                            break;
+                        case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+                            best = better(best, flush(run));
+                            break;
+                        default:
+                            // \p{..} \x.. \Q..\E \k<..> unicode escapes, back references, octals...
+                            throw new UnsupportedConstructException();
+                    }
+                }
+            } else {
+                pos++;
+                best = literal(c, run, best);
+            }
+        }
+        return better(best, flush(run));
+    }
+
+    /**
+     * Appends a literal char to the current run, taking into account a quantifier after it:
+     * with zero minimum repetitions the char is not required, otherwise it is but the run ends there.
+     */
+    private List<String> literal(char c, StringBuilder run, List<String> best) {
+        int min = parseQuantifierMin();
+        if (min == 0) return better(best, flush(run));
+        run.append(c);
+        if (min > 0) return better(best, flush(run));
+        return best;
+    }
+
+    /**
+     * Consumes a quantifier (greedy, reluctant or possessive) if there is one at current position
+     * @return -1 if there is no quantifier, otherwise the minimum number of repetitions
+     */
+    private int parseQuantifierMin() {
+        if (pos >= regex.length()) return -1;
+        int min;
+        char c = regex.charAt(pos);
+        if (c == '*' || c == '?') {
+            min = 0;
+            pos++;
+        } else if (c == '+') {
+            min = 1;
+            pos++;
+        } else if (c == '{') {
+            int end = regex.indexOf('}', pos);
+            String bounds = regex.substring(pos + 1, end);
+            int comma = bounds.indexOf(',');
+            min = Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+            pos = end + 1;
+        } else {
+            return -1;
+        }
+        if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) pos++;
+        return min;
+    }
+
+    private void skipGroupPrefix() {
+        if (regex.charAt(pos) != '?') return;
+        char n = regex.charAt(pos + 1);
+        if (n == ':') {
+            pos += 2;
+        } else if (n == '<' && Character.isLetter(regex.charAt(pos + 2))) {
+            pos = regex.indexOf('>', pos) + 1;
+        } else {
+            // Flags inline, lookaheads, lookbehinds, grupos atomicos
+            throw new UnsupportedConstructException();
+        }
+    }
+
+    private void skipCharacterClass() {
+        pos++; // [
+        if (regex.charAt(pos) == '^') pos++;
+        if (regex.charAt(pos) == ']') pos++; // ']' al principio es literal
+        int depth = 1;
+        while (depth > 0) {
+            char c = regex.charAt(pos++);
+            if (c == '\\') pos++;
+            else if (c == '[') depth++;
+            else if (c == ']') depth--;
+        }
+    }
+
+    private static List<String> flush(StringBuilder run) {
+        if (run.length() == 0) return null;
+        List<String> literal = Collections.singletonList(run.toString());
+        run.setLength(0);
+        return literal;
+    }
+
+    /* The best requirement is the one whose shortest alternative is the longest */
+    private static List<String> better(List<String> a, List<String> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return shortest(b) > shortest(a) ? b : a;
+    }
+
+    private static int shortest(List<String> literals) {
+        int min = Integer.MAX_VALUE;
+        for (String literal : literals) min = Math.min(min, literal.length());
+        return min;
+    }
+
+    private static class UnsupportedConstructException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
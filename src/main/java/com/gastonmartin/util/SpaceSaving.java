@@ -0,0 +1,169 @@
+package com.gastonmartin.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Weighted Space-Saving summary (Metwally et al.): keeps at most {@code capacity} counters, and when a new key
+ * arrives with all of them taken it replaces the smallest one, inheriting its value as error.
+ * So every key whose real total exceeds (sum of all weights) / capacity is guaranteed to be kept, and for
+ * each kept key {@code value - error <= real total <= value}.
+ * Summaries of different parts of the stream can be merged (Agarwal et al., mergeable summaries).
+ * Not thread safe.
+ */
+public class SpaceSaving {
+
+    /**
+     * The estimate of a key: an upper bound (value) and how much it may be over the real total (error)
+     */
+    public static final class Counter {
+        private final String key;
+        private long value;
+        private long error;
+
+        private Counter(String key, long value, long error) {
+            this.key = key;
+            this.value = value;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    private static final Comparator<Counter> BY_VALUE =
+            Comparator.comparingLong((Counter c) -> c.value).thenComparing(c -> c.key);
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    /* Counters sorted by value, the first one is replaced when full */
+    private final TreeSet<Counter> byValue = new TreeSet<>(BY_VALUE);
+
+    /**
+     * @param capacity max number of keys kept
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a weight to a key
+     * @param key the key
+     * @param weight a non negative weight (1 to count occurrences)
+     */
+    public void add(String key, long weight) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            // El TreeSet no se entera de cambios de valor: sacar, actualizar y volver a poner
+            byValue.remove(counter);
+            counter.value += weight;
+            byValue.add(counter);
+            return;
+        }
+        long error = 0L;
+        if (counters.size() >= capacity) {
+            Counter min = byValue.pollFirst();
+            counters.remove(min.key);
+            error = min.value;
+        }
+        counter = new Counter(key, error + weight, error);
+        counters.put(key, counter);
+        byValue.add(counter);
+    }
+
+    /**
+     * Restores a counter saved from {@link #top()}, with its error
+     * @param key a key that is not kept yet
+     * @param value the upper bound of its total
+     * @param error how much the value may be over the real total
+     * @throws IllegalStateException if the summary is full or already keeps the key
+     */
+    public void restore(String key, long value, long error) {
+        if (counters.size() >= capacity || counters.containsKey(key)) {
+            throw new IllegalStateException("Can not restore counter " + key + " of a summary of " + capacity);
+        }
+        Counter counter = new Counter(key, value, error);
+        counters.put(key, counter);
+        byValue.add(counter);
+    }
+
+    /**
+     * @param key a key
+     * @return the counter of the key, or null if it is not kept (its real total is then at most {@link #min()})
+     */
+    public Counter get(String key) {
+        return counters.get(key);
+    }
+
+    /**
+     * @return the max total a key that is not kept may have: the smallest value when full, otherwise 0
+     */
+    public long min() {
+        return counters.size() < capacity ? 0L : byValue.first().value;
+    }
+
+    /**
+     * Adds another summary into this one. A key missing in one of them may have had up to that summary's
+     * {@link #min()} there, which is added to both its value and its error.
+     * @param other a summary of another part of the stream
+     */
+    public void merge(SpaceSaving other) {
+        long thisMin = min();
+        long otherMin = other.min();
+        List<Counter> merged = new ArrayList<>(counters.size() + other.counters.size());
+        for (Counter counter : counters.values()) {
+            Counter theirs = other.counters.get(counter.key);
+            merged.add(theirs != null
+                    ? new Counter(counter.key, counter.value + theirs.value, counter.error + theirs.error)
+                    : new Counter(counter.key, counter.value + otherMin, counter.error + otherMin));
+        }
+        for (Counter theirs : other.counters.values()) {
+            if (!counters.containsKey(theirs.key)) {
+                merged.add(new Counter(theirs.key, theirs.value + thisMin, theirs.error + thisMin));
+            }
+        }
+        merged.sort(BY_VALUE.reversed());
+
+        counters.clear();
+        byValue.clear();
+        for (Counter counter : merged.subList(0, Math.min(capacity, merged.size()))) {
+            counters.put(counter.key, counter);
+            byValue.add(counter);
+        }
+    }
+
+    /**
+     * @return the counters kept, by value (descending)
+     */
+    public List<Counter> top() {
+        return new ArrayList<>(byValue.descendingSet());
+    }
+
+    /**
+     * @return max number of keys kept
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of keys kept
+     */
+    public int size() {
+        return counters.size();
+    }
+}
@@ -0,0 +1,34 @@
+package com.gastonmartin.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the UTF-8 lines of a stream, i.e. one being decompressed on the fly, through a large buffer
+ */
+public class StreamLineReader implements LineReader {
+
+    private static final int BUFFER_CHARS = 1 << 20;
+
+    private final BufferedReader reader;
+
+    /**
+     * @param in the (decoded) stream, closed with this reader
+     */
+    public StreamLineReader(InputStream in) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_CHARS);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        return reader.readLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
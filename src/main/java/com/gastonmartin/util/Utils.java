@@ -1,10 +1,10 @@
 package com.gastonmartin.util;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.math.NumberUtils.isCreatable;
@@ -66,13 +66,14 @@ public class Utils {
      * Given a whole line of message this method will tokenize the words of the message
      * and <b>generalize numbers</b> with some heuristics such as splitting the words again over
      * other separators (: and -) to handle words like userid:12345 or id-12345
-     * This is the <b>main generalize function</b> which calls the 2nd version suited for <b>recursion</b> (see below)
+     * This is the <b>main generalize function</b>. It delegates to {@link NumberGeneralizer}, a single pass
+     * version of the <b>recursive</b> method below (which is kept as the reference implementation)
      * @param message The whole line of the message
      * @param minDigits Minimun digits to generalize (i.e. 2 to avoid replacing single digits)
      * @return a new String with numbers generalized as per the called generalization methods
      */
     public static String generalizeNumbersInMessage(String message, int minDigits){
-        return generalizeNumbersInMessage(message,minDigits," ");
+        return NumberGeneralizer.generalize(message, minDigits);
     }
 
     /**
@@ -113,11 +114,75 @@ public class Utils {
      * Given a message generate a HASH representing the message.
      * This has been added for indexing messages in large collections
      * @param message to be hash
-     * @return a hash representing the message
+     * @return a hash representing the message (the 64 bit {@link #hash64(CharSequence)} in hex)
      */
     public static String getHashForString(String message){
-        // Se eligio este algoritmo por ninguna razon en particular.
-        return DigestUtils.sha256Hex(message);
+        // Para indexar no hace falta un hash criptografico, alcanza con uno rapido y bien distribuido
+        return String.format("%016x", hash64(message));
+    }
+
+    /**
+     * Given a String generate a 64 bit non cryptographic hash (Murmur3 style, mixing 4 chars per step and a final
+     * avalanche so all the bits depend on all the chars). For fingerprints and sketches that hash every line
+     * @param value the String
+     * @return a well distributed 64 bit hash
+     */
+    public static long hash64(CharSequence value) {
+        int length = value.length();
+        long hash = 0x9e3779b97f4a7c15L ^ length;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            long block = value.charAt(i)
+                    | (long) value.charAt(i + 1) << 16
+                    | (long) value.charAt(i + 2) << 32
+                    | (long) value.charAt(i + 3) << 48;
+            hash ^= mixBlock(block);
+            hash = Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+        }
+        long tail = 0L;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) value.charAt(i) << shift;
+        }
+        hash ^= mixBlock(tail);
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Given a String calculate its size in UTF-8 without encoding it (no byte[] per line)
+     * @param value the String
+     * @return the number of bytes of the String in UTF-8
+     */
+    public static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                bytes++;
+            } else if (Character.isSurrogate(c)) {
+                // Un par de surrogates son 4 bytes, uno suelto se codifica como '?'
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                }
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static long mixBlock(long block) {
+        block *= 0x87c37b91114253d5L;
+        block = Long.rotateLeft(block, 31);
+        return block * 0x4cf5ad432745937fL;
     }
 
     /**
@@ -125,7 +190,23 @@ public class Utils {
      * @return a String representing the current date such as 2020.05.30
      */
     public static String getTodayIndexName(){
-        SimpleDateFormat sdf = new SimpleDateFormat("YYYY.MM.dd");
-        return sdf.format(Calendar.getInstance().getTime());
+        // yyyy y no YYYY: el año de la semana daria el año siguiente en los ultimos dias de diciembre
+        return LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd"));
+    }
+
+    /**
+     * Calculates the names of the daily elasticsearch indices between two dates
+     * @param from first date such as 2020.05.25
+     * @param to last date (inclusive) such as 2020.05.31
+     * @return the dates from the first to the last one, i.e. 2020.05.25, 2020.05.26 ... 2020.05.31
+     */
+    public static List<String> getIndexNamesBetween(String from, String to){
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+        LocalDate last = LocalDate.parse(to, format);
+        List<String> dates = new ArrayList<>();
+        for (LocalDate date = LocalDate.parse(from, format); !date.isAfter(last); date = date.plusDays(1)) {
+            dates.add(date.format(format));
+        }
+        return dates;
     }
 }
@@ -0,0 +1,127 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.ReplacementRule;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that ExpressionSet.apply, which skips the rules whose literals are not in the line,
+ * produces exactly the same output as applying every rule of expressions.txt in order
+ */
+public class ExpressionSetTest
+    extends TestCase
+{
+    /* Appended to the sample expressions.txt: optional groups, escapes, no literals and chained rules */
+    private static final String[] EXTRA_RULES = {
+            "(user(name)?: )(\\w+)|$1(...)",
+            "(colou?r=)(\\w+)|$1(...)",
+            "(took \\(ms\\): )(\\d+)|$1n",
+            "\\$\\{(\\w+)\\}|<$1>",
+            "(?i)(timeout)|TIMEOUT",
+            "(job )(\\w+)( queued)|[state:queued] $2",
+            "(\\[state:queued\\] )(\\w+)|$1(...)",
+    };
+
+    /* Fragments of messages that (almost) match the rules */
+    private static final String[] FRAGMENTS = {
+            " ", " ", " ", "[", "]", ":", "-", "|", "1", "42", "12345", "abc", "x-1", "MLA", "site_id = ",
+            "[event:multiPost] KEY:", "[event:multiPost]", "[status:400]", "[status:409] KEY:", "[status:500]",
+            "[error:", "negative_balance] ", "KEY:", "[event:multipost][error:", "[event:lock] [lock resource ",
+            "[event:unlock] [unlock resource ", "[Value NOT found for key: ", "[event:get] [Found value for:",
+            " - value:", "Creating balance_logs, count ", " Movements created response ", "[movement checkParameter: ",
+            " Recipe Valid:", "Reason:", "Scope:", "Recipe-ID:", " Invalid Recipe:", " for client: ",
+            "[event:release] [TRACE ", " - Starts release]", "[user_id:", "[type_user:",
+            "user: ", "username: ", "color=", "colour=", "took (ms): ", "took ", "${", "}", "Timeout", "job ",
+            " queued", "[state:queued] ",
+    };
+
+    public ExpressionSetTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ExpressionSetTest.class );
+    }
+
+    public void testKnownMessages() throws IOException
+    {
+        ExpressionSet expressions = loadSample();
+        String[] messages = {
+                "",
+                "[event:multiPost] KEY:multi-cb4af300_pay_4744914159-0 Negative balance",
+                "[event:multiPost][status:400][error:negative_balance] KEY:abc-1 rest of message",
+                "[event:lock] [lock resource user-1234]",
+                "site_id = MLA user: john colour=red took (ms): 35 ${name}",
+                "request TIMEOUT job a1 queued",
+                "nothing to replace here",
+        };
+        for (String message : messages) {
+            assertSameAsReference(expressions, message);
+        }
+    }
+
+    public void testRandomMessagesMatchReference() throws IOException
+    {
+        ExpressionSet expressions = loadSample();
+        assertTrue(expressions.indexedSize() > 0);
+        assertTrue(expressions.indexedSize() < expressions.size());
+        Random random = new Random(20200602L);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 50000; n++) {
+            sb.setLength(0);
+            int parts = random.nextInt(10);
+            for (int i = 0; i < parts; i++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSameAsReference(expressions, sb.toString());
+        }
+    }
+
+    private static void assertSameAsReference(ExpressionSet expressions, String message)
+    {
+        String expected = message;
+        for (ReplacementRule rule : expressions.getRules()) {
+            expected = rule.getPattern().matcher(expected).replaceAll(rule.getReplacement());
+        }
+        assertEquals("message [" + message + "]", expected, expressions.apply(message));
+    }
+
+    /* The bundled expressions.txt plus EXTRA_RULES, in a temp file written as ExpressionSet.load reads it */
+    private static ExpressionSet loadSample() throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ExpressionSetTest.class.getResourceAsStream("/expressions.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+            while ((line = reader.readLine()) != null) {
+                // Las lineas que no se pueden escribir en el charset por defecto se descartan
+                if (encoder.canEncode(line)) lines.add(line);
+            }
+        }
+        lines.addAll(Arrays.asList(EXTRA_RULES));
+        Path file = Files.createTempFile("expressions", ".txt");
+        try {
+            Files.write(file, lines, Charset.defaultCharset());
+            return ExpressionSet.load(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.gastonmartin.service;
+
+import com.gastonmartin.model.Tags;
+import com.gastonmartin.util.Utils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Checks that TagSubstituter, which scans the message once, produces exactly the same output as the
+ * former per tag {@code \[ ?tag ?: ?value ?\]} replaceFirst sequence (DISMISS first, then UNDIFERENTIATE)
+ * for tag values without regex metacharacters
+ */
+public class TagSubstituterTest
+    extends TestCase
+{
+    /* Short names, some of them prefix of others, so that random segments hit them often */
+    private static final String[] DISMISS = {"id", "ids", "host", "site-id"};
+    private static final String[] UNDIFERENTIATE = {"user_id", "nextval", "id-x"};
+
+    /* No regex metacharacters: the former method pasted the value into the pattern and the replacement */
+    private static final String VALUE_CHARS = "abcXYZ0123456789_- :/,=@#%";
+
+    /* Text around the segments, including brackets and colons that almost make a segment */
+    private static final String[] FRAGMENTS = {
+            " ", " ", "", "[", "]", ":", " [", "] ", "[ ", " ]", "text", "42", "KEY:", "[event:multiPost]",
+            "[status:400]", "[[", "]]", "[:]", "[ :",
+    };
+
+    public TagSubstituterTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TagSubstituterTest.class );
+    }
+
+    public void testKnownMessages()
+    {
+        TagSubstituter substituter = new TagSubstituter(DISMISS, UNDIFERENTIATE);
+        Map<String, String> tags = new HashMap<>();
+        tags.put("id", "42");
+        tags.put("ids", " 7 ");
+        tags.put("host", "");
+        tags.put("user_id", "ab-12");
+        tags.put("nextval", "31135316033");
+        String[] messages = {
+                "",
+                "no tags here",
+                "[id:42] [id:42] [ids: 7 ]",
+                "[ id : 42 ] [ids:7] [ids:  7 ]",
+                "[host:] [site-id:MLA] [user_id:ab-12][nextval: 31135316033 ]",
+                "[id:420] [id:4] [ id:42]",
+                "[user_id:ab-12 ] [nextval:31135316033] [nextval:31135316033]",
+        };
+        for (String message : messages) {
+            assertSameAsReference(substituter, DISMISS, UNDIFERENTIATE, tags, message);
+        }
+    }
+
+    public void testRandomMessagesMatchReference()
+    {
+        Random random = new Random(20200619L);
+        TagSubstituter substituter = new TagSubstituter(DISMISS, UNDIFERENTIATE);
+        String[] names = concat(DISMISS, UNDIFERENTIATE);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 50000; n++) {
+            // Cada documento con sus tags: algunos ausentes o vacios
+            Map<String, String> tags = new HashMap<>();
+            for (String name : names) {
+                int kind = random.nextInt(6);
+                if (kind == 0) continue;
+                tags.put(name, kind == 1 ? "" : kind == 2 ? String.valueOf(random.nextInt(100000)) : randomValue(random));
+            }
+            sb.setLength(0);
+            int parts = random.nextInt(8);
+            for (int i = 0; i < parts; i++) {
+                if (random.nextBoolean()) {
+                    sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                } else {
+                    appendSegment(sb, random, names[random.nextInt(names.length)], tags);
+                }
+            }
+            assertSameAsReference(substituter, DISMISS, UNDIFERENTIATE, tags, sb.toString());
+        }
+    }
+
+    public void testDefaultTags()
+    {
+        Random random = new Random(20200620L);
+        TagSubstituter substituter = new TagSubstituter();
+        String[] names = concat(Tags.DISMISS, Tags.UNDIFERENTIATE);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 10000; n++) {
+            Map<String, String> tags = new HashMap<>();
+            for (String name : names) {
+                if (random.nextInt(4) != 0) tags.put(name, randomValue(random));
+            }
+            sb.setLength(0);
+            int parts = random.nextInt(6);
+            for (int i = 0; i < parts; i++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                appendSegment(sb, random, names[random.nextInt(names.length)], tags);
+            }
+            assertSameAsReference(substituter, Tags.DISMISS, Tags.UNDIFERENTIATE, tags, sb.toString());
+        }
+    }
+
+    /* A [name:value] segment with optional blanks, whose value is usually the one of the document */
+    private static void appendSegment(StringBuilder sb, Random random, String name, Map<String, String> tags)
+    {
+        String value = tags.get(name);
+        int kind = random.nextInt(5);
+        if (value == null || kind == 0) {
+            value = randomValue(random);
+        } else if (kind == 1 && value.length() > 1) {
+            // Un prefijo o el valor con algo mas: no debe coincidir
+            value = random.nextBoolean() ? value.substring(0, value.length() - 1) : value + "0";
+        }
+        sb.append('[');
+        if (random.nextInt(4) == 0) sb.append(' ');
+        sb.append(name);
+        if (random.nextInt(4) == 0) sb.append(' ');
+        sb.append(':');
+        // A veces dos blancos, que el patron no admite salvo que sean parte del valor
+        int blanks = random.nextInt(6);
+        if (blanks >= 3) sb.append(' ');
+        if (blanks == 5) sb.append(' ');
+        sb.append(value);
+        if (random.nextInt(4) == 0) sb.append(' ');
+        if (random.nextInt(10) != 0) sb.append(']');
+    }
+
+    private static String randomValue(Random random)
+    {
+        int length = 1 + random.nextInt(6);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(VALUE_CHARS.charAt(random.nextInt(VALUE_CHARS.length())));
+        return sb.toString();
+    }
+
+    private static String[] concat(String[] first, String[] second)
+    {
+        String[] all = new String[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static void assertSameAsReference(TagSubstituter substituter, String[] dismiss, String[] undiferentiate,
+                                              Map<String, String> tags, String message)
+    {
+        String expected = replaceTags(message, tags, dismiss, true);
+        expected = replaceTags(expected, tags, undiferentiate, false);
+        assertEquals("message [" + message + "] tags " + tags, expected, substituter.substitute(message, tags::get));
+    }
+
+    /* The replaceTags of LogProcessorService before TagSubstituter, one pattern per tag */
+    private static String replaceTags(String message, Map<String, String> values, String[] tags, boolean removeValue)
+    {
+        for (String tag : tags) {
+            String tagValue = values.get(tag);
+            if (tagValue != null && !tagValue.isEmpty()) {
+                Pattern p = Pattern.compile("\\[ ?" + tag + " ?: ?" + tagValue + " ?\\]");
+                Matcher m = p.matcher(message);
+                if (removeValue) {
+                    message = m.replaceFirst(format("[%s:%s]", tag, tag.toUpperCase()));
+                } else if (Utils.isNumeric(tagValue)) {
+                    message = m.replaceFirst(format("[%s:%s]", tag, Utils.generalizeNumber(tagValue)));
+                } else {
+                    message = m.replaceFirst(format("[%s:%s]", tag, Utils.generalize(tagValue)));
+                }
+            }
+        }
+        return message;
+    }
+}
@@ -0,0 +1,107 @@
+package com.gastonmartin.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that HyperLogLog estimates known cardinalities within 3 standard errors, that merging counters is the
+ * same as adding the union of their values, and that a counter is restored as it was saved
+ */
+public class HyperLogLogTest
+    extends TestCase
+{
+    private static final int[] PRECISIONS = {4, 8, 12, 14, 16};
+    private static final int[] CARDINALITIES = {0, 1, 10, 100, 1000, 10000, 100000, 500000};
+
+    public HyperLogLogTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( HyperLogLogTest.class );
+    }
+
+    public void testEstimatesWithinThreeStandardErrors()
+    {
+        Random random = new Random(20200616L);
+        for (int precision : PRECISIONS) {
+            for (int cardinality : CARDINALITIES) {
+                HyperLogLog counter = new HyperLogLog(precision);
+                // Valores repetidos no cambian la estimacion
+                String prefix = random.nextLong() + "-";
+                for (int i = 0; i < cardinality; i++) {
+                    counter.add(prefix + i);
+                    if (i % 3 == 0) counter.add(prefix + random.nextInt(i + 1));
+                }
+                long estimate = counter.estimate();
+                double tolerance = 3 * counter.standardError() * cardinality;
+                assertTrue(String.format("precision %d: %d distinct estimated as %d", precision, cardinality, estimate),
+                        Math.abs(estimate - cardinality) <= Math.max(tolerance, 1.0));
+            }
+        }
+    }
+
+    public void testStandardError()
+    {
+        assertEquals(1.04 / 4, new HyperLogLog(4).standardError(), 1e-9);
+        assertEquals(1.04 / 64, new HyperLogLog(12).standardError(), 1e-9);
+        assertEquals(12, new HyperLogLog(12).getPrecision());
+    }
+
+    public void testMergeIsTheUnion()
+    {
+        Random random = new Random(20200617L);
+        for (int precision : PRECISIONS) {
+            HyperLogLog first = new HyperLogLog(precision);
+            HyperLogLog second = new HyperLogLog(precision);
+            HyperLogLog empty = new HyperLogLog(precision);
+            HyperLogLog union = new HyperLogLog(precision);
+            // Valores en uno, en el otro y en los dos
+            for (int i = 0; i < 50000; i++) {
+                String value = "v" + random.nextInt(80000);
+                int where = random.nextInt(3);
+                if (where != 1) first.add(value);
+                if (where != 0) second.add(value);
+                union.add(value);
+            }
+            first.merge(second);
+            first.merge(empty);
+            assertTrue(Arrays.equals(union.toBytes(), first.toBytes()));
+            assertEquals(union.estimate(), first.estimate());
+
+            empty.merge(union);
+            assertEquals(union.estimate(), empty.estimate());
+        }
+        try {
+            new HyperLogLog(12).merge(new HyperLogLog(14));
+            fail("merged counters of different precision");
+        } catch (IllegalArgumentException e) {
+            // esperado
+        }
+    }
+
+    public void testBytesRoundTrip()
+    {
+        Random random = new Random(20200618L);
+        for (int precision : PRECISIONS) {
+            HyperLogLog counter = new HyperLogLog(precision);
+            for (int i = 0; i < 20000; i++) counter.addHash(random.nextLong());
+            byte[] saved = counter.toBytes();
+            HyperLogLog restored = HyperLogLog.fromBytes(saved);
+            assertEquals(precision, restored.getPrecision());
+            assertEquals(counter.estimate(), restored.estimate());
+            assertTrue(Arrays.equals(saved, restored.toBytes()));
+
+            // Una copia: seguir sumando al original no cambia lo guardado
+            counter.addHash(random.nextLong());
+            restored.addHash(random.nextLong());
+            assertTrue(Arrays.equals(saved, HyperLogLog.fromBytes(saved).toBytes()));
+        }
+    }
+}
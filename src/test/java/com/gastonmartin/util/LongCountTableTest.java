@@ -0,0 +1,286 @@
+package com.gastonmartin.util;
+
+import com.gastonmartin.model.TemplateDictionary;
+import com.gastonmartin.model.TemplateRanking;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that LongCountTable (and TemplateRanking on top of it) keeps exactly the same counts, bytes
+ * and top entries as a plain {@code HashMap<Long, long[]>}
+ */
+public class LongCountTableTest
+    extends TestCase
+{
+    private static final int COUNT = 0;
+    private static final int BYTES = 1;
+
+    public LongCountTableTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LongCountTableTest.class );
+    }
+
+    public void testRandomAddsMatchReference()
+    {
+        Random random = new Random(20200605L);
+        for (int round = 0; round < 50; round++) {
+            LongCountTable table = new LongCountTable();
+            Map<Long, long[]> reference = new HashMap<>();
+            // Pocas claves (muchos empates y repeticiones) o muchas (varios resize)
+            int keyRange = round % 2 == 0 ? 1 + random.nextInt(20) : 1 + random.nextInt(5000);
+            int adds = random.nextInt(10000);
+            for (int i = 0; i < adds; i++) {
+                long key = random.nextInt(keyRange) - keyRange / 2;
+                add(table, reference, key, 1 + random.nextInt(3), random.nextInt(200));
+            }
+            assertSameAsReference(table, reference, random);
+        }
+    }
+
+    public void testResizeWithCollidingKeys()
+    {
+        Random random = new Random(20200606L);
+        LongCountTable table = new LongCountTable();
+        Map<Long, long[]> reference = new HashMap<>();
+        // Claves que caen en el mismo slot hasta una tabla de 1024 slots, y claves consecutivas como las huellas
+        List<Long> keys = new ArrayList<>();
+        while (keys.size() < 300) {
+            long key = random.nextLong();
+            if ((mix(key) & 1023) == 0) keys.add(key);
+        }
+        for (long key = 1000L; key < 1300L; key++) keys.add(key);
+        for (int i = 0; i < 20000; i++) {
+            add(table, reference, keys.get(random.nextInt(keys.size())), 1, random.nextInt(100));
+            if (i % 1000 == 0) assertSameAsReference(table, reference, random);
+        }
+        assertSameAsReference(table, reference, random);
+    }
+
+    public void testMergeOfDifferentCapacities()
+    {
+        Random random = new Random(20200607L);
+        for (int round = 0; round < 20; round++) {
+            LongCountTable small = new LongCountTable();
+            LongCountTable big = new LongCountTable();
+            Map<Long, long[]> smallReference = new HashMap<>();
+            Map<Long, long[]> bigReference = new HashMap<>();
+            for (int i = 0; i < 10; i++) {
+                add(small, smallReference, random.nextInt(3000), 1 + random.nextInt(5), random.nextInt(100));
+            }
+            for (int i = 0; i < 5000; i++) {
+                add(big, bigReference, random.nextInt(3000), 1 + random.nextInt(5), random.nextInt(100));
+            }
+
+            Map<Long, long[]> merged = copy(bigReference);
+            mergeInto(merged, smallReference);
+            LongCountTable smallIntoBig = new LongCountTable();
+            smallIntoBig.merge(big);
+            smallIntoBig.merge(small);
+            assertSameAsReference(smallIntoBig, merged, random);
+
+            small.merge(big);
+            assertSameAsReference(small, merged, random);
+
+            big.merge(new LongCountTable());
+            assertSameAsReference(big, bigReference, random);
+        }
+    }
+
+    public void testTies()
+    {
+        Random random = new Random(20200608L);
+        LongCountTable table = new LongCountTable();
+        Map<Long, long[]> reference = new HashMap<>();
+        for (long key = 0; key < 100; key++) {
+            add(table, reference, key * 7919L, 5, key < 50 ? 100 : 200);
+        }
+        assertSameAsReference(table, reference, random);
+        for (int n = 0; n <= 100; n++) {
+            assertEquals(n, table.topByCount(n).length);
+        }
+        // Los 50 con mas bytes son exactamente los que tienen 200
+        for (long key : table.topByBytes(50)) assertEquals(200L, table.bytes(key));
+    }
+
+    public void testTopOfMoreThanSize()
+    {
+        LongCountTable table = new LongCountTable();
+        assertEquals(0, table.topByCount(10).length);
+        assertEquals(0, table.topByBytes(0).length);
+        table.add(1L, 3, 10);
+        table.add(2L, 5, 5);
+        table.add(3L, 4, 20);
+        assertEquals(3, table.topByCount(Integer.MAX_VALUE).length);
+        assertEquals(2L, table.topByCount(10)[0]);
+        assertEquals(1L, table.topByCount(10)[2]);
+        assertEquals(3L, table.topByBytes(10)[0]);
+        assertEquals(2L, table.topByBytes(10)[2]);
+        assertEquals(0, table.topByBytes(0).length);
+    }
+
+    public void testTemplateRankingMatchesReference()
+    {
+        Random random = new Random(20200609L);
+        TemplateDictionary templates = new TemplateDictionary();
+        TemplateRanking ranking = new TemplateRanking(templates);
+        TemplateRanking other = new TemplateRanking(templates);
+        TemplateRanking foreign = new TemplateRanking(new TemplateDictionary());
+        Map<String, long[]> reference = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String message = "message " + random.nextInt(500);
+            long bytes = random.nextInt(300);
+            TemplateRanking target = i % 3 == 0 ? ranking : i % 3 == 1 ? other : foreign;
+            target.add(message, bytes);
+            long[] values = reference.computeIfAbsent(message, k -> new long[2]);
+            values[COUNT]++;
+            values[BYTES] += bytes;
+        }
+        ranking.merge(other);
+        ranking.merge(foreign);
+        assertEquals(reference.size(), ranking.size());
+        Map<String, long[]> visited = new HashMap<>();
+        ranking.forEach((key, count, bytes) -> assertNull(visited.put(key, new long[]{count, bytes})));
+        assertEquals(reference.size(), visited.size());
+        for (Map.Entry<String, long[]> entry : reference.entrySet()) {
+            assertEquals(entry.getValue()[COUNT], visited.get(entry.getKey())[COUNT]);
+            assertEquals(entry.getValue()[BYTES], visited.get(entry.getKey())[BYTES]);
+        }
+        for (int n : new int[]{0, 1, 10, reference.size(), reference.size() + 10}) {
+            assertTopRanking(ranking.topByCount(n), reference, n, COUNT);
+            assertTopRanking(ranking.topByBytes(n), reference, n, BYTES);
+        }
+        assertTopRanking(ranking.sortedByCount(), reference, reference.size(), COUNT);
+        assertTopRanking(ranking.sortedByBytes(), reference, reference.size(), BYTES);
+    }
+
+    public void testTemplateDictionaryCollisions()
+    {
+        TemplateDictionary templates = new TemplateDictionary();
+        Map<Long, String> reference = new HashMap<>();
+        // Todos con el mismo fingerprint (y el fingerprint mas alto, que pasa al siguiente stripe) mas mensajes reales
+        for (int i = 0; i < 500; i++) {
+            String text = "colliding " + i;
+            assertNull(reference.put(templates.id(text, 42L), text));
+            assertNull(reference.put(templates.id("top " + i, -1L - i), "top " + i));
+            String message = "message " + i;
+            reference.put(templates.id(message), message);
+        }
+        assertEquals(reference.size(), templates.size());
+        for (Map.Entry<Long, String> entry : reference.entrySet()) {
+            assertEquals(entry.getValue(), templates.text(entry.getKey()));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals("colliding " + i, templates.text(templates.id("colliding " + i, 42L)));
+            assertEquals(Long.valueOf(templates.id("message " + i)), templates.find("message " + i));
+        }
+        assertNull(templates.find("never added"));
+        assertEquals(reference.size(), templates.size());
+    }
+
+    private static void add(LongCountTable table, Map<Long, long[]> reference, long key, long count, long bytes)
+    {
+        table.add(key, count, bytes);
+        long[] values = reference.computeIfAbsent(key, k -> new long[2]);
+        values[COUNT] += count;
+        values[BYTES] += bytes;
+    }
+
+    private static Map<Long, long[]> copy(Map<Long, long[]> reference)
+    {
+        Map<Long, long[]> copy = new HashMap<>();
+        for (Map.Entry<Long, long[]> entry : reference.entrySet()) copy.put(entry.getKey(), entry.getValue().clone());
+        return copy;
+    }
+
+    private static void mergeInto(Map<Long, long[]> target, Map<Long, long[]> source)
+    {
+        for (Map.Entry<Long, long[]> entry : source.entrySet()) {
+            long[] values = target.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            values[COUNT] += entry.getValue()[COUNT];
+            values[BYTES] += entry.getValue()[BYTES];
+        }
+    }
+
+    private static void assertSameAsReference(LongCountTable table, Map<Long, long[]> reference, Random random)
+    {
+        assertEquals(reference.size(), table.size());
+        for (Map.Entry<Long, long[]> entry : reference.entrySet()) {
+            assertEquals("count of " + entry.getKey(), entry.getValue()[COUNT], table.count(entry.getKey()));
+            assertEquals("bytes of " + entry.getKey(), entry.getValue()[BYTES], table.bytes(entry.getKey()));
+        }
+        for (int i = 0; i < 100; i++) {
+            long missing = random.nextLong();
+            if (reference.containsKey(missing)) continue;
+            assertEquals(0L, table.count(missing));
+            assertEquals(0L, table.bytes(missing));
+        }
+        Set<Long> visited = new HashSet<>();
+        table.forEach((key, count, bytes) -> {
+            assertTrue("visited twice " + key, visited.add(key));
+            assertEquals(reference.get(key)[COUNT], count);
+            assertEquals(reference.get(key)[BYTES], bytes);
+        });
+        assertEquals(reference.size(), visited.size());
+
+        int size = reference.size();
+        for (int n : new int[]{0, 1, 2, size / 2, size - 1, size, size + 1, 2 * size + 5}) {
+            if (n < 0) continue;
+            assertTop(table.topByCount(n), table, reference, n, COUNT);
+            assertTop(table.topByBytes(n), table, reference, n, BYTES);
+        }
+    }
+
+    /* The keys must be distinct and their values the n highest of the reference: on ties any key is right */
+    private static void assertTop(long[] top, LongCountTable table, Map<Long, long[]> reference, int n, int field)
+    {
+        List<Long> expected = highest(reference.values(), field, n);
+        assertEquals("top " + n + " of " + reference.size(), expected.size(), top.length);
+        Set<Long> keys = new HashSet<>();
+        for (int i = 0; i < top.length; i++) {
+            assertTrue("repeated key " + top[i], keys.add(top[i]));
+            long value = field == COUNT ? table.count(top[i]) : table.bytes(top[i]);
+            assertEquals("top " + n + " position " + i, (long) expected.get(i), value);
+        }
+    }
+
+    private static void assertTopRanking(Map<String, Long> top, Map<String, long[]> reference, int n, int field)
+    {
+        List<Long> expected = highest(reference.values(), field, n);
+        assertEquals(expected.size(), top.size());
+        int i = 0;
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            assertEquals(reference.get(entry.getKey())[field], (long) entry.getValue());
+            assertEquals("top " + n + " position " + i, expected.get(i++), entry.getValue());
+        }
+    }
+
+    private static List<Long> highest(Iterable<long[]> values, int field, int n)
+    {
+        List<Long> sorted = new ArrayList<>();
+        for (long[] value : values) sorted.add(value[field]);
+        sorted.sort(Collections.reverseOrder());
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    /* Same spreading as LongCountTable.mix, to build keys that land on the same slot */
+    private static int mix(long key)
+    {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
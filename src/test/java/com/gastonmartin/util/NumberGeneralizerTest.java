@@ -0,0 +1,72 @@
+package com.gastonmartin.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Checks that NumberGeneralizer produces exactly the same output as the original
+ * split/regex based Utils.generalizeNumbersInMessage(message, minDigits, " ")
+ */
+public class NumberGeneralizerTest
+    extends TestCase
+{
+    /* Fragments that exercise every branch: separators, signs, exponents, hex, octal, type qualifiers... */
+    private static final String[] FRAGMENTS = {
+            " ", " ", " ", ":", "-", ",", ".", "+", "\t", "\r",
+            "0", "1", "7", "8", "9", "00", "12", "123", "4567", "1,234", "12.5", "0.5", ".5", "5.",
+            "e", "E", "x", "X", "0x", "0X1F", "ff", "L", "l", "f", "F", "d", "D", "1e5", "2E-3", "07", "089",
+            "id", "userid", "key", "abc", "_", "[", "]", "=", "KEY:", "id-", "-1", "-12", "+34", "٣",
+    };
+
+    public NumberGeneralizerTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( NumberGeneralizerTest.class );
+    }
+
+    public void testKnownMessages()
+    {
+        String[] messages = {
+                "",
+                " ",
+                "   trailing   ",
+                "[date: 2020-04-24_06:35:11] [level: ERROR] [request_id:ae65ef32-2b1e-4f93-9826-87c12473c9ea] KEY:multi-cb4af300dd05424bb87e68bb587e90a8_pay_4744914159-0 Negative balance ",
+                "user_id:394820860 - total: 9053674.00 - unavailable: 6738263.00 - available_amount: 2315411.00",
+                "amount 1,234,567 id-12345 userid:12345 a:1 b-2 -3 0x1F 1e5 12L 3.5f",
+                "a::b x-:y:: --5 5-- :12 12:",
+        };
+        for (String message : messages) {
+            for (int minDigits = 0; minDigits <= 3; minDigits++) {
+                assertSameAsReference(message, minDigits);
+            }
+        }
+    }
+
+    public void testRandomMessagesMatchReference()
+    {
+        Random random = new Random(20200530L);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 200000; n++) {
+            sb.setLength(0);
+            int parts = random.nextInt(12);
+            for (int i = 0; i < parts; i++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSameAsReference(sb.toString(), random.nextInt(4));
+        }
+    }
+
+    private static void assertSameAsReference(String message, int minDigits)
+    {
+        String expected = Utils.generalizeNumbersInMessage(message, minDigits, " ");
+        String actual = NumberGeneralizer.generalize(message, minDigits);
+        assertEquals("message [" + message + "] minDigits " + minDigits, expected, actual);
+    }
+}
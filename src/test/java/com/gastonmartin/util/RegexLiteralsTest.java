@@ -0,0 +1,128 @@
+package com.gastonmartin.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the literals extracted by RegexLiterals, and that every line matched by a regex
+ * contains at least one of them (otherwise ExpressionSet would skip a rule that applies)
+ */
+public class RegexLiteralsTest
+    extends TestCase
+{
+    private static final String[] REGEXES = {
+            "(\\[event:multiPost\\] KEY:)(\\S+)(.+)",
+            "(ERROR|WARN): ",
+            "foo|barbaz",
+            "a|.*",
+            "(user(name)?: )(\\w+)",
+            "colou?r=",
+            "(site_id = )?(M..)",
+            "took \\(ms\\): \\d+",
+            "\\$\\{(\\w+)\\}",
+            "x{0,3}yz",
+            "(?:ab|cd)+ef?",
+            "[a|b]+(x|y)z",
+            "(?i)timeout",
+            "\\Qa.b\\E",
+            "(a)\\1",
+    };
+
+    /* Fragments that build lines matched (or almost matched) by the regexes above */
+    private static final String[] FRAGMENTS = {
+            " ", " ", ":", ": ", "[", "]", "(", ")", "{", "}", "$", "|", ".", "1", "42",
+            "[event:multiPost] KEY:", "[event:multiPost]", " KEY:", "ERROR", "WARN", "foo", "barbaz", "bar",
+            "user", "username", "name", "color=", "colour=", "colo", "site_id = ", "M", "MLA",
+            "took (ms): ", "took ", "(ms)", "${", "x", "yz", "ab", "cd", "ef", "e", "a", "b", "z",
+            "TIMEOUT", "timeout", "a.b",
+    };
+
+    public RegexLiteralsTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RegexLiteralsTest.class );
+    }
+
+    public void testSequences()
+    {
+        assertLiterals("(\\[event:multiPost\\] KEY:)(\\S+)(.+)", "[event:multiPost] KEY:");
+        assertLiterals("abc+def", "abc");
+        assertLiterals("^start.*end$", "start");
+    }
+
+    public void testAlternations()
+    {
+        assertLiterals("foo|barbaz", "foo", "barbaz");
+        assertLiterals("(ERROR|WARN): ", "ERROR", "WARN");
+        assertLiterals("(ERROR|WARN) code", " code");
+        assertLiterals("(?:ab|cd)+ef?", "ab", "cd");
+        assertLiterals("[a|b]+(x|y)z", "x", "y");
+        assertNull(RegexLiterals.requiredLiterals("a|.*"));
+        assertLiterals("(a|)b", "b");
+    }
+
+    public void testOptionalGroups()
+    {
+        assertLiterals("(user(name)?: )(\\w+)", "user");
+        assertLiterals("colou?r=", "colo");
+        assertLiterals("(site_id = )?(M..)", "M");
+        assertLiterals("x{0,3}yz", "yz");
+        assertLiterals("(abc)*de", "de");
+        assertNull(RegexLiterals.requiredLiterals("(abc)?"));
+    }
+
+    public void testEscapes()
+    {
+        assertLiterals("took \\(ms\\): \\d+", "took (ms): ");
+        assertLiterals("\\$\\{(\\w+)\\}", "${");
+        assertLiterals("a\\tb\\.c", "a\tb.c");
+        assertLiterals("\\[\\w+\\] \\[id:\\d+\\]", "] [id:");
+    }
+
+    public void testUnsupportedConstructs()
+    {
+        assertNull(RegexLiterals.requiredLiterals("(?i)timeout"));
+        assertNull(RegexLiterals.requiredLiterals("\\Qa.b\\E"));
+        assertNull(RegexLiterals.requiredLiterals("(a)\\1"));
+        assertNull(RegexLiterals.requiredLiterals("(?=abc)abc"));
+        assertNull(RegexLiterals.requiredLiterals("\\p{L}+"));
+    }
+
+    public void testRandomMatchesContainALiteral()
+    {
+        Random random = new Random(20200602L);
+        StringBuilder sb = new StringBuilder();
+        int matches = 0;
+        for (int n = 0; n < 100000; n++) {
+            sb.setLength(0);
+            int parts = random.nextInt(8);
+            for (int i = 0; i < parts; i++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            String line = sb.toString();
+            String regex = REGEXES[random.nextInt(REGEXES.length)];
+            List<String> literals = RegexLiterals.requiredLiterals(regex);
+            if (literals == null || !Pattern.compile(regex).matcher(line).find()) continue;
+            matches++;
+            boolean found = false;
+            for (String literal : literals) found |= line.contains(literal);
+            assertTrue("regex [" + regex + "] matches [" + line + "] without any of " + literals, found);
+        }
+        assertTrue("too few matching lines: " + matches, matches > 1000);
+    }
+
+    private static void assertLiterals(String regex, String... expected)
+    {
+        assertEquals("regex [" + regex + "]", Arrays.asList(expected), RegexLiterals.requiredLiterals(regex));
+    }
+}
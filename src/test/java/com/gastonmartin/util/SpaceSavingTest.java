@@ -0,0 +1,278 @@
+package com.gastonmartin.util;
+
+import com.gastonmartin.model.SketchRanking;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the guarantees of SpaceSaving, CountMinSketch and SketchRanking against the exact totals of a
+ * {@code HashMap}: {@code value - error <= real <= value}, every key above 1/K of the total is kept, and
+ * both still hold after merging summaries of parts of the stream (full or not)
+ */
+public class SpaceSavingTest
+    extends TestCase
+{
+    public SpaceSavingTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SpaceSavingTest.class );
+    }
+
+    public void testSingleStream()
+    {
+        Random random = new Random(20200610L);
+        for (int capacity : new int[]{1, 2, 10, 50}) {
+            for (int round = 0; round < 10; round++) {
+                SpaceSaving summary = new SpaceSaving(capacity);
+                Map<String, Long> reference = new HashMap<>();
+                int keys = 1 + random.nextInt(300);
+                int adds = random.nextInt(20000);
+                for (int i = 0; i < adds; i++) {
+                    add(summary, reference, skewedKey(random, keys), 1 + random.nextInt(100));
+                }
+                assertGuarantees(summary, reference);
+            }
+        }
+    }
+
+    public void testNotFullIsExact()
+    {
+        Random random = new Random(20200611L);
+        SpaceSaving summary = new SpaceSaving(100);
+        Map<String, Long> reference = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            add(summary, reference, "k" + random.nextInt(99), random.nextInt(10));
+        }
+        assertEquals(0L, summary.min());
+        for (SpaceSaving.Counter counter : summary.top()) {
+            assertEquals(0L, counter.getError());
+            assertEquals((long) reference.get(counter.getKey()), counter.getValue());
+        }
+    }
+
+    public void testMerges()
+    {
+        Random random = new Random(20200612L);
+        for (int round = 0; round < 200; round++) {
+            int capacity = 1 + random.nextInt(30);
+            int keys = 1 + random.nextInt(200);
+            Map<String, Long> reference = new HashMap<>();
+            // Partes de tamaños muy distintos: algunas no llenan el resumen
+            List<SpaceSaving> parts = new ArrayList<>();
+            int count = 1 + random.nextInt(8);
+            for (int p = 0; p < count; p++) {
+                SpaceSaving part = new SpaceSaving(capacity);
+                int adds = random.nextBoolean() ? random.nextInt(capacity + 1) : random.nextInt(3000);
+                // Cada parte con su propia distribucion, para que los tops difieran
+                int offset = random.nextInt(keys);
+                for (int i = 0; i < adds; i++) {
+                    String key = "k" + ((skewedIndex(random, keys) + offset) % keys);
+                    add(part, reference, key, 1 + random.nextInt(50));
+                }
+                assertTrue(part.size() <= capacity);
+                parts.add(part);
+            }
+            // En orden o de a pares (como los workers y las paginas)
+            SpaceSaving merged;
+            if (random.nextBoolean()) {
+                merged = new SpaceSaving(capacity);
+                for (SpaceSaving part : parts) merged.merge(part);
+            } else {
+                while (parts.size() > 1) {
+                    SpaceSaving a = parts.remove(random.nextInt(parts.size()));
+                    SpaceSaving b = parts.remove(random.nextInt(parts.size()));
+                    a.merge(b);
+                    parts.add(a);
+                }
+                merged = parts.get(0);
+            }
+            assertGuarantees(merged, reference);
+        }
+    }
+
+    public void testRestore()
+    {
+        Random random = new Random(20200613L);
+        SpaceSaving summary = new SpaceSaving(20);
+        Map<String, Long> reference = new HashMap<>();
+        for (int i = 0; i < 10000; i++) add(summary, reference, skewedKey(random, 200), 1 + random.nextInt(10));
+        SpaceSaving restored = new SpaceSaving(20);
+        for (SpaceSaving.Counter counter : summary.top()) {
+            restored.restore(counter.getKey(), counter.getValue(), counter.getError());
+        }
+        assertEquals(summary.min(), restored.min());
+        for (SpaceSaving.Counter counter : summary.top()) {
+            assertEquals(counter.getValue(), restored.get(counter.getKey()).getValue());
+            assertEquals(counter.getError(), restored.get(counter.getKey()).getError());
+        }
+        // Sigue funcionando igual que el original
+        for (int i = 0; i < 10000; i++) {
+            String key = skewedKey(random, 200);
+            long weight = 1 + random.nextInt(10);
+            summary.add(key, weight);
+            add(restored, reference, key, weight);
+        }
+        assertGuarantees(restored, reference);
+        try {
+            restored.restore("k0", 1L, 0L);
+            fail("restored a counter into a full summary");
+        } catch (IllegalStateException e) {
+            // esperado
+        }
+    }
+
+    public void testCountMinSketch()
+    {
+        Random random = new Random(20200614L);
+        CountMinSketch sketch = new CountMinSketch(256, 5);
+        CountMinSketch first = new CountMinSketch(256, 5);
+        CountMinSketch second = new CountMinSketch(256, 5);
+        Map<String, Long> reference = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            String key = skewedKey(random, 5000);
+            long weight = 1 + random.nextInt(20);
+            sketch.add(key, weight);
+            (i % 3 == 0 ? first : second).add(key, weight);
+            reference.merge(key, weight, Long::sum);
+        }
+        first.merge(second);
+        CountMinSketch restored = CountMinSketch.fromBytes(sketch.toBytes());
+        int over = 0;
+        for (Map.Entry<String, Long> entry : reference.entrySet()) {
+            long estimate = sketch.estimate(entry.getKey());
+            assertTrue("estimate below the real total of " + entry.getKey(), estimate >= entry.getValue());
+            if (estimate - entry.getValue() > sketch.errorBound()) over++;
+            assertEquals(estimate, first.estimate(entry.getKey()));
+            assertEquals(estimate, restored.estimate(entry.getKey()));
+        }
+        assertEquals(sketch.errorBound(), first.errorBound());
+        assertEquals(sketch.errorBound(), restored.errorBound());
+        // El error supera la cota con probabilidad e^-5 por clave
+        assertTrue("over the error bound: " + over + " of " + reference.size(), over <= reference.size() / 100);
+        assertEquals(0L, new CountMinSketch(256, 5).estimate("missing"));
+    }
+
+    public void testSketchRanking()
+    {
+        Random random = new Random(20200615L);
+        for (int round = 0; round < 20; round++) {
+            int topK = 1 + random.nextInt(40);
+            Map<String, long[]> reference = new HashMap<>();
+            // Rankings de paginas y workers que se mezclan, algunos vacios o chicos
+            SketchRanking ranking = new SketchRanking(topK);
+            int parts = 1 + random.nextInt(6);
+            for (int p = 0; p < parts; p++) {
+                SketchRanking part = new SketchRanking(topK);
+                int adds = random.nextBoolean() ? random.nextInt(topK + 1) : random.nextInt(5000);
+                for (int i = 0; i < adds; i++) {
+                    String key = skewedKey(random, 500);
+                    long bytes = random.nextInt(2000);
+                    if (random.nextInt(10) == 0) {
+                        long count = 1 + random.nextInt(5);
+                        part.add(key, count, bytes);
+                        addRanking(reference, key, count, bytes);
+                    } else {
+                        part.add(key, bytes);
+                        addRanking(reference, key, 1L, bytes);
+                    }
+                }
+                ranking.merge(part);
+            }
+            assertRankingGuarantees(ranking, reference, topK);
+        }
+    }
+
+    private static void assertGuarantees(SpaceSaving summary, Map<String, Long> reference)
+    {
+        long total = 0L;
+        for (long value : reference.values()) total += value;
+        assertTrue(summary.size() <= summary.capacity());
+        List<SpaceSaving.Counter> top = summary.top();
+        for (int i = 0; i < top.size(); i++) {
+            SpaceSaving.Counter counter = top.get(i);
+            long real = reference.getOrDefault(counter.getKey(), 0L);
+            assertTrue("negative error", counter.getError() >= 0);
+            assertTrue("real " + real + " over value " + counter.getValue(), real <= counter.getValue());
+            assertTrue("real " + real + " under value - error " + (counter.getValue() - counter.getError()),
+                    counter.getValue() - counter.getError() <= real);
+            if (i > 0) assertTrue("not sorted", top.get(i - 1).getValue() >= counter.getValue());
+        }
+        for (Map.Entry<String, Long> entry : reference.entrySet()) {
+            if (summary.get(entry.getKey()) != null) continue;
+            assertTrue("missing " + entry.getKey() + " over min", entry.getValue() <= summary.min());
+            assertFalse("missing " + entry.getKey() + " over 1/K of the total",
+                    entry.getValue() * summary.capacity() > total);
+        }
+    }
+
+    private static void assertRankingGuarantees(SketchRanking ranking, Map<String, long[]> reference, int topK)
+    {
+        long lines = 0L;
+        long bytes = 0L;
+        for (long[] values : reference.values()) {
+            lines += values[0];
+            bytes += values[1];
+        }
+        Map<String, Long> byCount = ranking.sortedByCount();
+        Map<String, Long> byBytes = ranking.sortedByBytes();
+        for (Map.Entry<String, Long> entry : byCount.entrySet()) {
+            long real = reference.get(entry.getKey())[0];
+            assertTrue(real <= entry.getValue());
+            assertTrue(entry.getValue() - ranking.countError(entry.getKey()) <= real);
+        }
+        for (Map.Entry<String, Long> entry : byBytes.entrySet()) {
+            long real = reference.get(entry.getKey())[1];
+            assertTrue(real <= entry.getValue());
+            assertTrue(entry.getValue() - ranking.bytesError(entry.getKey()) <= real);
+        }
+        Set<String> visited = new HashSet<>();
+        ranking.forEach((key, count, keyBytes) -> assertTrue(visited.add(key)));
+        assertEquals(ranking.size(), visited.size());
+        for (Map.Entry<String, long[]> entry : reference.entrySet()) {
+            String key = entry.getKey();
+            long real = entry.getValue()[0];
+            if (real * topK > lines) assertTrue("heavy key " + key + " missing by count", byCount.containsKey(key));
+            if (entry.getValue()[1] * topK > bytes) assertTrue("heavy key " + key + " missing by bytes", byBytes.containsKey(key));
+            // Cualquier clave, este o no en el top
+            assertTrue(real <= ranking.count(key));
+            assertTrue(ranking.count(key) - ranking.countError(key) <= real);
+        }
+    }
+
+    private static void add(SpaceSaving summary, Map<String, Long> reference, String key, long weight)
+    {
+        summary.add(key, weight);
+        reference.merge(key, weight, Long::sum);
+    }
+
+    private static void addRanking(Map<String, long[]> reference, String key, long count, long bytes)
+    {
+        long[] values = reference.computeIfAbsent(key, k -> new long[2]);
+        values[0] += count;
+        values[1] += bytes;
+    }
+
+    private static String skewedKey(Random random, int keys)
+    {
+        return "k" + skewedIndex(random, keys);
+    }
+
+    /* Pocas claves frecuentes y una cola larga, como los mensajes */
+    private static int skewedIndex(Random random, int keys)
+    {
+        return (int) Math.min(keys - 1, Math.abs(random.nextGaussian()) * keys / 8);
+    }
+}